@@ -18,6 +18,7 @@ package sofia.app;
 
 import sofia.graphics.Color;
 import sofia.graphics.CoordinateSystem;
+import sofia.graphics.Image;
 import sofia.graphics.Shape;
 import sofia.graphics.ShapeField;
 import sofia.graphics.ShapeFilter;
@@ -26,6 +27,9 @@ import sofia.graphics.ShapeView;
 import android.graphics.PointF;
 import android.view.View;
 
+import java.util.List;
+import java.util.concurrent.Future;
+
 // -------------------------------------------------------------------------
 /**
  * <p>
@@ -198,6 +202,23 @@ public abstract class ShapeScreen
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Starts decoding images in the background, so that they are ready by
+     * the time they are first drawn instead of causing a pause. This is
+     * typically called from {@code initialize()} with the images that the
+     * screen will use.
+     *
+     * @param images The images to decode.
+     * @return A list of futures, one for each image, that complete once the
+     *         corresponding image has been decoded.
+     */
+    public List<Future<Image>> prefetch(Image... images)
+    {
+        return Image.prefetch(this, images);
+    }
+
+
     // ----------------------------------------------------------
     /**
      * Turn on detection of scale (pinch) gestures on the ShapeView.
@@ -61,6 +61,13 @@ public class CoordinateSystem
     private float width;
     private float height;
     private Matrix matrix;
+    private Matrix inverseMatrix;
+    private float deviceScaleX = 1;
+    private float deviceScaleY = 1;
+
+    // Incremented each time the transform changes, so that anything drawn
+    // with the old transform can tell that it is out of date
+    private volatile int version;
 
 
     //~ Constructors ..........................................................
@@ -269,12 +276,11 @@ public class CoordinateSystem
      */
     public PointF deviceToLocal(float x, float y)
     {
-        if (matrix != null)
+        Matrix inverse = inverseMatrix;
+
+        if (inverse != null)
         {
             float[] ptArray = { x, y };
-
-            Matrix inverse = new Matrix();
-            matrix.invert(inverse);
             inverse.mapPoints(ptArray);
 
             return new PointF(ptArray[0], ptArray[1]);
@@ -301,6 +307,83 @@ public class CoordinateSystem
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Gets the number of device pixels covered by one horizontal unit of
+     * this coordinate system.
+     *
+     * @return the horizontal scale from local units to device pixels
+     */
+    public float getDeviceScaleX()
+    {
+        return deviceScaleX;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the number of device pixels covered by one vertical unit of this
+     * coordinate system.
+     *
+     * @return the vertical scale from local units to device pixels
+     */
+    public float getDeviceScaleY()
+    {
+        return deviceScaleY;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Transforms a rectangle in place from local coordinates to device
+     * coordinates. If the coordinate system is rotated or flipped, the result
+     * is the smallest rectangle that contains the transformed one.
+     *
+     * @param rect the rectangle to transform
+     */
+    /*package*/ void localToDevice(RectF rect)
+    {
+        Matrix m = matrix;
+
+        if (m != null)
+        {
+            m.mapRect(rect);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Transforms a rectangle in place from device coordinates to local
+     * coordinates. If the coordinate system is rotated or flipped, the result
+     * is the smallest rectangle that contains the transformed one.
+     *
+     * @param rect the rectangle to transform
+     */
+    /*package*/ void deviceToLocal(RectF rect)
+    {
+        Matrix inverse = inverseMatrix;
+
+        if (inverse != null)
+        {
+            inverse.mapRect(rect);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a number that changes each time this coordinate system's
+     * transform changes.
+     *
+     * @return the version of the transform
+     */
+    /*package*/ int getVersion()
+    {
+        return version;
+    }
+
+
     // ----------------------------------------------------------
     /**
      * Called internally to update the {@code AffineTransform} that will be
@@ -308,13 +391,18 @@ public class CoordinateSystem
      */
     protected void updateTransform()
     {
+        version++;
+
         if (origin == Anchor.TOP_LEFT && isNaN(width) && isNaN(height))
         {
+            inverseMatrix = null;
             matrix = null;
+            deviceScaleX = 1;
+            deviceScaleY = 1;
         }
         else
         {
-            matrix = new Matrix();
+            Matrix matrix = new Matrix();
 
             int viewWidth = owner.getWidth();
             int viewHeight = owner.getHeight();
@@ -338,6 +426,9 @@ public class CoordinateSystem
                 yScale = viewWidth / width;
             }
 
+            deviceScaleX = xScale;
+            deviceScaleY = yScale;
+
             RectF bounds = new RectF(0, 0, viewWidth, viewHeight);
             PointF originPt = origin.getPoint(bounds);
 
@@ -355,6 +446,12 @@ public class CoordinateSystem
             matrix.preTranslate(
                     originPt.x / xScale, originPt.y / yScale);
             matrix.postTranslate(offsetX * xScale, offsetY * yScale);
+
+            Matrix inverseMatrix = new Matrix();
+            matrix.invert(inverseMatrix);
+
+            this.inverseMatrix = inverseMatrix;
+            this.matrix = matrix;
         }
     }
 
@@ -18,6 +18,7 @@ package sofia.graphics;
 
 import android.content.Context;
 import android.graphics.Canvas;
+import android.graphics.PointF;
 
 //-------------------------------------------------------------------------
 /**
@@ -59,4 +60,18 @@ public interface Drawing
 
     // ----------------------------------------------------------
     public int getFrameNumber();
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the position of the shape being drawn, as it was recorded for the
+     * frame being drawn. The physics simulation may move the shape while the
+     * frame is drawn, so shapes should draw themselves around this position
+     * (see {@link Shape#getDrawingPosition(Drawing)}) instead of reading
+     * their own position again.
+     *
+     * @return the recorded position of the shape being drawn, or null if
+     *     none was recorded
+     */
+    public PointF getShapePosition();
 }
@@ -16,8 +16,8 @@
 
 package sofia.graphics;
 
+import android.graphics.Canvas;
 import android.graphics.Paint;
-import android.graphics.Path;
 import android.graphics.PointF;
 import android.graphics.RectF;
 
@@ -71,25 +71,11 @@ public abstract class Fill
         int oldAlpha = paint.getAlpha();
         paint.setAlpha(alpha);
 
-        Path path = new Path();
-        path.incReserve(polygon.size());
+        Canvas canvas = drawing.getCanvas();
+        canvas.translate(origin.x, origin.y);
+        canvas.drawPath(polygon.getPath(), paint);
+        canvas.translate(-origin.x, -origin.y);
 
-        for (int i = 0; i < polygon.size(); i++)
-        {
-            PointF pt = polygon.get(i);
-            if (i == 0)
-            {
-                path.moveTo(origin.x + pt.x, origin.y + pt.y);
-            }
-            else
-            {
-                path.lineTo(origin.x + pt.x, origin.y + pt.y);
-            }
-        }
-
-        path.close();
-
-        drawing.getCanvas().drawPath(path, paint);
         paint.setAlpha(oldAlpha);
     }
 
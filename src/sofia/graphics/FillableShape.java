@@ -36,6 +36,7 @@ public abstract class FillableShape extends StrokedShape
     //~ Fields ................................................................
 
     private Fill fill;
+    private volatile Paint fillPaint;
 
 
     //~ Constructors ..........................................................
@@ -97,6 +98,7 @@ public abstract class FillableShape extends StrokedShape
     public void setFill(Fill newFill)
     {
         fill = newFill;
+        invalidatePaint();
         conditionallyRepaint();
     }
 
@@ -274,11 +276,58 @@ public abstract class FillableShape extends StrokedShape
      */
     protected Paint getFillPaint()
     {
-        Paint paint = new Paint();
+        Paint result = fillPaint;
+
+        if (result == null)
+        {
+            synchronized (this)
+            {
+                result = fillPaint;
+
+                if (result == null)
+                {
+                    result = new Paint();
+                    configureFillPaint(result);
+                    fillPaint = result;
+                }
+            }
+        }
+
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sets the attributes of the {@code Paint} returned by
+     * {@link #getFillPaint()} when it is rebuilt. Subclasses can override
+     * this method to add their own attributes; they should call the
+     * superclass implementation first.
+     *
+     * @param paint the newly created {@code Paint} to configure
+     */
+    protected void configureFillPaint(Paint paint)
+    {
         paint.setStyle(Paint.Style.FILL_AND_STROKE);
         paint.setColor(getFillColor().toRawColor());
         paint.setAlpha(getAlpha());
-        return paint;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Discards both the outline and the fill {@code Paint}s, so that they
+     * will be rebuilt the next time they are needed.
+     */
+    @Override
+    protected void invalidatePaint()
+    {
+        synchronized (this)
+        {
+            fillPaint = null;
+        }
+
+        super.invalidatePaint();
     }
 
 
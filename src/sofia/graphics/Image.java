@@ -16,12 +16,33 @@
 
 package sofia.graphics;
 
+import sofia.graphics.internal.BitmapCache;
+import sofia.graphics.internal.PixelOps;
 import sofia.internal.JarResources;
-import sofia.internal.MRUMap;
 
 import android.content.Context;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 //-------------------------------------------------------------------------
 /**
@@ -39,23 +60,52 @@ public class Image
 {
     //~ Fields ................................................................
 
-    private Bitmap   bitmap;
     private int      bitmapId;
     private Class<?> klass;
     private String   fileName;
     private boolean  useDefault  = true;
     private boolean  scaleForDpi = true;
+    private int      maxWidth;
+    private int      maxHeight;
+
+    // The bitmap may be resolved on a background thread while it is being
+    // drawn, so it is only ever replaced as a whole
+    private volatile Bitmap  bitmap;
+    private volatile boolean resolved;
+    private Future<Image>    pendingResolve;
+
+    // The part of the bitmap that holds this image, if the bitmap is an
+    // ImageAtlas page; guarded by this image's lock together with bitmap
+    private Rect             atlasRegion;
+
+    // Bitmaps are shared (through the cache, atlases, and copies of images)
+    // until an image's pixels are first changed; it then gets its own copy.
+    // Changes made since its scaled copy was last brought up to date are
+    // tracked, so that only that part of the scaled copy is redrawn.
+    private boolean          ownsBitmap;
+    private volatile int     modificationCount;
+    private final Rect       dirtyRegion = new Rect();
+    private Bitmap           ownVariant;
 
     private static Bitmap defaultImage;
-    private static MRUMap<String, Bitmap> bitmapCache =
-            new MRUMap<String, Bitmap>(256, 60 * 60 * 4,
-                    new MRUMap.Recycler<Bitmap>() {
-                        @Override
-                        public void recycle(Bitmap value)
-                        {
-                            value.recycle();
-                        }
-            });
+
+    // Decoded bitmaps, shared by all images loaded from the same source;
+    // by default, it may use up to an eighth of the heap
+    private static final BitmapCache bitmapCache =
+            new BitmapCache(Runtime.getRuntime().maxMemory() / 8);
+
+    // Decodes images in the background; created the first time it is needed
+    private static ExecutorService decodeExecutor;
+    private static final int DECODE_THREADS = 2;
+
+    // Scaled variants of images that are being created in the background
+    private static final Set<BitmapCache.Key> pendingVariants =
+            new HashSet<BitmapCache.Key>();
+
+    // Incremented each time a background decode finishes or an image's
+    // pixels change, so that views know to redraw the shapes that use it
+    private static final AtomicInteger contentGeneration =
+            new AtomicInteger();
 
 
     //~ Constructors ..........................................................
@@ -68,6 +118,8 @@ public class Image
     public Image(Bitmap bitmap)
     {
         this.bitmap = bitmap;
+        this.resolved = true;
+        this.ownsBitmap = true;
     }
 
 
@@ -117,12 +169,22 @@ public class Image
      */
     public Image(Image other)
     {
-        bitmap = other.bitmap;
+        synchronized (other)
+        {
+            // Both images now share the bitmap, so whichever changes its
+            // pixels first must make its own copy.
+            bitmap = other.bitmap;
+            atlasRegion = other.atlasRegion;
+            other.ownsBitmap = false;
+        }
+        resolved = other.resolved;
         bitmapId = other.bitmapId;
         klass = other.klass;
         fileName = other.fileName;
         useDefault = other.useDefault;
         scaleForDpi = other.scaleForDpi;
+        maxWidth = other.maxWidth;
+        maxHeight = other.maxHeight;
     }
 
 
@@ -148,10 +210,38 @@ public class Image
      */
     public Bitmap asBitmap()
     {
+        detachFromAtlas();
         return bitmap;
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Says whether this image has been packed into an {@link ImageAtlas},
+     * so that it draws from a region of a larger, shared bitmap.
+     *
+     * @return True if this image is part of an atlas page.
+     */
+    public synchronized boolean isInAtlas()
+    {
+        return atlasRegion != null;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the number of times this image's pixels have been changed through
+     * methods such as {@link #setPixel(int, int, Color)}. This can be used to
+     * tell whether an image has changed since it was last examined.
+     *
+     * @return The number of changes made to this image's pixels.
+     */
+    public int getModificationCount()
+    {
+        return modificationCount;
+    }
+
+
     // ----------------------------------------------------------
     /**
      * Determine whether this image should use the default Sofia
@@ -222,6 +312,62 @@ public class Image
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Limit the size at which this image is loaded. If the image is larger
+     * than the limit, it is decoded at a reduced resolution (when possible)
+     * and then scaled down, keeping its aspect ratio, so that it fits within
+     * the limit. This saves memory for large images that are only drawn at a
+     * small size. This setting is only useful before the image is resolved
+     * (loaded), since scaling happens at that time.
+     *
+     * @param maxWidth  The maximum width of the loaded image, in pixels, or 0
+     *                  for no limit.
+     * @param maxHeight The maximum height of the loaded image, in pixels, or
+     *                  0 for no limit.
+     * @see #resolveAgainstContext(Context)
+     */
+    public void setMaximumSize(int maxWidth, int maxHeight)
+    {
+        if (maxWidth < 0 || maxHeight < 0)
+        {
+            throw new IllegalArgumentException(
+                "The maximum size of an image cannot be negative.");
+        }
+
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the maximum width at which this image will be loaded.
+     *
+     * @return The maximum width of the loaded image, in pixels, or 0 if
+     *         there is no limit.
+     * @see #setMaximumSize(int, int)
+     */
+    public int getMaximumWidth()
+    {
+        return maxWidth;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the maximum height at which this image will be loaded.
+     *
+     * @return The maximum height of the loaded image, in pixels, or 0 if
+     *         there is no limit.
+     * @see #setMaximumSize(int, int)
+     */
+    public int getMaximumHeight()
+    {
+        return maxHeight;
+    }
+
+
     // ----------------------------------------------------------
     /**
      * Provide an Android resource context to use for loading this
@@ -231,88 +377,135 @@ public class Image
      */
     public void resolveAgainstContext(Context context)
     {
-        boolean alreadyCached = false;
+        resolve(context, true);
+    }
 
-        if (bitmap != null && bitmap.isRecycled())
+
+    // ----------------------------------------------------------
+    /**
+     * Resolves this image against a context on a background thread, so
+     * that the calling thread does not have to wait for it to be decoded. If
+     * the image's bitmap is already available (because the image has been
+     * resolved before, or because another image loaded the same bitmap), it
+     * is resolved immediately instead.
+     *
+     * <p>While the image is being decoded, {@link #asBitmap()} returns null
+     * and {@link ImageFill} draws its placeholder instead of the image.</p>
+     *
+     * @param context The context to resolve this image against.
+     * @return A future that completes with this image once it has been
+     *         resolved.
+     */
+    public synchronized Future<Image> resolveInBackground(
+        final Context context)
+    {
+        if (pendingResolve != null)
         {
-            bitmap = null;
+            return pendingResolve;
         }
 
-        if (bitmap == null)
+        if (!isResolved())
         {
-            bitmap = bitmapCache.get(fileName /*FIXME*/);
+            BitmapCache.Key key = cacheKey();
+            Bitmap current = (key != null) ? bitmapCache.get(key) : null;
 
-            if (bitmap != null)
+            if (current != null)
             {
-                alreadyCached = true;
+                bitmap = current;
+                resolved = true;
             }
-        }
-
-        if (bitmap == null)
-        {
-//            System.out.println("Image.resolveAgainstContext(" + context + ")");
-            if (bitmapId != 0)
+            else if (key != null)
             {
-                bitmap = BitmapFactory.decodeResource(
-                    context.getResources(), bitmapId);
-//                System.out.println("id " + Integer.toString(bitmapId, 16)
-//                    + " = " + bitmap);
+                FutureTask<Image> task = new FutureTask<Image>(
+                    new Callable<Image>() {
+                        public Image call()
+                        {
+                            try
+                            {
+                                resolve(context, false);
+                            }
+                            finally
+                            {
+                                finishBackgroundResolve();
+                            }
+
+                            return Image.this;
+                        }
+                    });
+
+                pendingResolve = task;
+                getDecodeExecutor().execute(task);
+                return task;
             }
             else
             {
-                // Find stream based on parameters
-                if (fileName != null)
-                {
-                    bitmap = JarResources.getBitmap(
-                        context, fileName, true, scaleForDpi, "");
-//                    System.out.println(
-//                        "fileName " + fileName + " = " + stream);
-                }
-                else if (klass != null)
-                {
-                    bitmap = bitmapFor(context, klass, scaleForDpi);
-//                    System.out.println(
-//                        "class " + klass.getName() + " = " + stream);
-                }
+                // Nothing to decode, so this only picks the default image.
+                resolveAgainstContext(context);
             }
         }
 
-        if (bitmap == null && useDefault)
-        {
-            if (defaultImage == null)
+        FutureTask<Image> done = new FutureTask<Image>(new Runnable() {
+            public void run()
             {
-                BitmapFactory.Options bfo = null;
-                if (!scaleForDpi)
-                {
-                    bfo = new BitmapFactory.Options();
-                    bfo.inScaled = false;
-                }
-                // Default to generic logo
-                defaultImage = Bitmap.createBitmap(
-                        16, 16, Bitmap.Config.ARGB_8888);
-                /*defaultImage = BitmapFactory.decodeResource(
-                    context.getResources(),
-                    R.drawable.sofia_default_image, bfo);*/
-//                System.out.println("loading default image = " + bitmap);
+                // Nothing to do; the image is already resolved.
             }
-            bitmap = defaultImage;
-//            System.out.println("bitmap = default image = " + bitmap);
-        }
+        }, this);
+        done.run();
+        return done;
+    }
 
-//        if (bitmap != null)
-//        {
-//            System.out.println("bitmap " + bitmap + " " + bitmap.getWidth()
-//                + "x" + bitmap.getHeight() + " density = " +
-//                bitmap.getDensity());
-//            System.out.println("target density = " +
-//                context.getResources().getDisplayMetrics().densityDpi);
-//        }
 
-        if (!alreadyCached && bitmap != null)
+    // ----------------------------------------------------------
+    /**
+     * Says whether this image has been resolved; that is, whether its bitmap
+     * has been loaded (or it has been found to be missing).
+     *
+     * @return True if this image has been resolved.
+     */
+    public boolean isResolved()
+    {
+        Bitmap current = bitmap;
+        return resolved && (current == null || !current.isRecycled());
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Says whether this image is currently being decoded on a background
+     * thread.
+     *
+     * @return True if a background decode of this image is in progress.
+     * @see #resolveInBackground(Context)
+     */
+    public synchronized boolean isResolving()
+    {
+        return pendingResolve != null;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Starts decoding a set of images on background threads, so that they
+     * are ready by the time they are first drawn. This is typically called
+     * when a screen is created, for the images it will use.
+     *
+     * @param context The context to resolve the images against.
+     * @param images  The images to decode.
+     * @return A list of futures, one for each image, that complete once
+     *         the corresponding image has been resolved.
+     */
+    public static List<Future<Image>> prefetch(
+        Context context, Image... images)
+    {
+        List<Future<Image>> futures =
+            new ArrayList<Future<Image>>(images.length);
+
+        for (Image image : images)
         {
-            System.out.println("Putting " + fileName + " in cache");
-            bitmapCache.put(fileName /*FIXME*/, bitmap);
+            futures.add(image.resolveInBackground(context));
         }
+
+        return futures;
     }
 
 
@@ -326,14 +519,14 @@ public class Image
      * @return The width of this bitmap, in pixels.
      * @throws IllegalStateException If the bitmap has not yet been resolved.
      */
-    public int getWidth()
+    public synchronized int getWidth()
     {
         if (bitmap == null)
         {
             throw new IllegalStateException("This method cannot be called "
                 + "until the bitmap has been resolved.");
         }
-        return bitmap.getWidth();
+        return (atlasRegion != null) ? atlasRegion.width() : bitmap.getWidth();
     }
 
 
@@ -347,14 +540,15 @@ public class Image
      * @return The height of this bitmap, in pixels.
      * @throws IllegalStateException If the bitmap has not yet been resolved.
      */
-    public int getHeight()
+    public synchronized int getHeight()
     {
         if (bitmap == null)
         {
             throw new IllegalStateException("This method cannot be called "
                 + "until the bitmap has been resolved.");
         }
-        return bitmap.getHeight();
+        return (atlasRegion != null)
+            ? atlasRegion.height() : bitmap.getHeight();
     }
 
 
@@ -372,6 +566,8 @@ public class Image
      */
     public Color getPixel(int x, int y)
     {
+        detachFromAtlas();
+
         if (bitmap == null)
         {
             throw new IllegalStateException("This method cannot be called "
@@ -393,6 +589,8 @@ public class Image
      */
     public Color[] getPixels()
     {
+        detachFromAtlas();
+
         if (bitmap == null)
         {
             throw new IllegalStateException("This method cannot be called "
@@ -426,15 +624,8 @@ public class Image
      */
     public void setPixel(int x, int y, Color color)
     {
-        if (bitmap == null)
-        {
-            throw new IllegalStateException("This method cannot be called "
-                + "until the bitmap has been resolved.");
-        }
-
-        // TODO: deal with copy-on-write if the bitmap is not mutable
-
-        bitmap.setPixel(x, y, color.toRawColor());
+        writableBitmap().setPixel(x, y, color.toRawColor());
+        markModified(x, y, 1, 1);
     }
 
 
@@ -449,11 +640,7 @@ public class Image
      */
     public void setPixels(Color[] pixels)
     {
-        if (bitmap == null)
-        {
-            throw new IllegalStateException("This method cannot be called "
-                + "until the bitmap has been resolved.");
-        }
+        Bitmap bitmap = pixelBitmap();
 
         int width = bitmap.getWidth();
         int height = bitmap.getHeight();
@@ -477,47 +664,1017 @@ public class Image
         {
             rawPixels[i] = pixels[i].toRawColor();
         }
-        bitmap.setPixels(rawPixels, 0, width, 0, 0, width, height);
+        setPixels(rawPixels);
     }
 
 
-    // TODO: add media computation features here
+    // ----------------------------------------------------------
+    /**
+     * Gets the number of bytes of pixel data held by the cache of decoded
+     * images. Images that are loaded from the same resource id, file name,
+     * or class share a single decoded bitmap through this cache.
+     *
+     * @return the size of the image cache, in bytes
+     */
+    public static long getCacheSize()
+    {
+        return bitmapCache.getSize();
+    }
 
 
-    //~ Private Methods .......................................................
+    // ----------------------------------------------------------
+    /**
+     * Gets the maximum number of bytes of pixel data that the cache of
+     * decoded images will hold. By default, this is an eighth of the
+     * maximum heap size.
+     *
+     * @return the maximum size of the image cache, in bytes
+     */
+    public static long getCacheMaxSize()
+    {
+        return bitmapCache.getMaxSize();
+    }
+
 
     // ----------------------------------------------------------
-    private static Bitmap bitmapFor(
-        Context context, Class<?> cls, boolean scaleForDpi)
+    /**
+     * Sets the maximum number of bytes of pixel data that the cache of
+     * decoded images will hold. When the cache is full, the images that were
+     * used least recently are evicted to make room for new ones.
+     *
+     * @param maxSize the maximum size of the image cache, in bytes
+     */
+    public static void setCacheMaxSize(long maxSize)
     {
-        Bitmap bm = null;
-        while (bm == null && cls != null)
-        {
-            if (bm == null)
-            {
-                bm = JarResources.getBitmap(context,
-                    cls.getName().replace('.', '/'), true, scaleForDpi, "");
-            }
-            if (bm == null)
-            {
-                bm = JarResources.getBitmap(context,
-                    cls.getName().toLowerCase().replace('.', '/'),
-                    true, scaleForDpi, "");
-            }
-            if (bm == null)
-            {
-                bm = JarResources.getBitmap(context,
-                    cls.getSimpleName(), true, scaleForDpi,
-                    cls.getPackage().getName(), "");
-            }
-            if (bm == null)
-            {
-                bm = JarResources.getBitmap(context,
-                    cls.getSimpleName().toLowerCase(), true, scaleForDpi,
-                    cls.getPackage().getName(), "");
-            }
-            cls = cls.getSuperclass();
-        }
-        return bm;
+        bitmapCache.setMaxSize(maxSize);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Removes all of the decoded images from the cache. Images that have
+     * already been resolved keep their bitmaps.
+     */
+    public static void clearCache()
+    {
+        bitmapCache.clear();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the number of times an image was resolved using a bitmap that was
+     * already in the cache.
+     *
+     * @return the number of cache hits
+     */
+    public static long getCacheHitCount()
+    {
+        return bitmapCache.getHitCount();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the number of times an image had to be decoded because its bitmap
+     * was not in the cache.
+     *
+     * @return the number of cache misses
+     */
+    public static long getCacheMissCount()
+    {
+        return bitmapCache.getMissCount();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the number of decoded images that have been evicted from the cache
+     * to make room for others.
+     *
+     * @return the number of cache evictions
+     */
+    public static long getCacheEvictionCount()
+    {
+        return bitmapCache.getEvictionCount();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Copies all of the pixels in the image into an array of packed ARGB
+     * values (as used by {@link android.graphics.Color}), in row-major order.
+     * Unlike {@link #getPixels()}, this does not create an object for each
+     * pixel.
+     *
+     * @param dst The array to fill, which must hold at least width x height
+     *            values.
+     * @throws IllegalStateException If the bitmap has not yet been resolved.
+     */
+    public void getPixels(int[] dst)
+    {
+        Bitmap current = pixelBitmap();
+        getPixels(dst, 0, 0, current.getWidth(), current.getHeight());
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Copies the pixels in a rectangular region of the image into an array
+     * of packed ARGB values, in row-major order.
+     *
+     * @param dst    The array to fill, which must hold at least
+     *               width x height values.
+     * @param x      The x coordinate of the left edge of the region.
+     * @param y      The y coordinate of the top edge of the region.
+     * @param width  The width of the region.
+     * @param height The height of the region.
+     * @throws IllegalArgumentException If the region exceeds the bitmap's
+     *         bounds, or the array is too small.
+     * @throws IllegalStateException If the bitmap has not yet been resolved.
+     */
+    public void getPixels(int[] dst, int x, int y, int width, int height)
+    {
+        checkPixelArray(dst, width, height);
+        pixelBitmap().getPixels(dst, 0, width, x, y, width, height);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Replaces all of the pixels in the image with packed ARGB values from
+     * an array, in row-major order.
+     *
+     * @param src The pixels to write, which must hold at least
+     *            width x height values.
+     * @throws IllegalArgumentException If the array is too small.
+     * @throws IllegalStateException If the bitmap has not yet been resolved.
+     */
+    public void setPixels(int[] src)
+    {
+        Bitmap current = pixelBitmap();
+        setPixels(src, 0, 0, current.getWidth(), current.getHeight());
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Replaces the pixels in a rectangular region of the image with packed
+     * ARGB values from an array, in row-major order.
+     *
+     * @param src    The pixels to write, which must hold at least
+     *               width x height values.
+     * @param x      The x coordinate of the left edge of the region.
+     * @param y      The y coordinate of the top edge of the region.
+     * @param width  The width of the region.
+     * @param height The height of the region.
+     * @throws IllegalArgumentException If the region exceeds the bitmap's
+     *         bounds, or the array is too small.
+     * @throws IllegalStateException If the bitmap has not yet been resolved.
+     */
+    public void setPixels(int[] src, int x, int y, int width, int height)
+    {
+        checkPixelArray(src, width, height);
+        writableBitmap().setPixels(src, 0, width, x, y, width, height);
+        markModified(x, y, width, height);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the pixels of the image as a buffer of packed ARGB values, in
+     * row-major order. The buffer holds a copy of the pixels; to change the
+     * image, modify the buffer and pass it to {@link #setPixels(IntBuffer)}.
+     *
+     * @return A buffer holding the image's pixels.
+     * @throws IllegalStateException If the bitmap has not yet been resolved.
+     */
+    public IntBuffer getPixelBuffer()
+    {
+        Bitmap current = pixelBitmap();
+        int[] pixels = new int[current.getWidth() * current.getHeight()];
+        getPixels(pixels);
+        return IntBuffer.wrap(pixels);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Replaces all of the pixels in the image with packed ARGB values from a
+     * buffer, in row-major order, starting at the buffer's position. The
+     * buffer's position is not changed.
+     *
+     * @param src The pixels to write.
+     * @throws IllegalArgumentException If the buffer has too few values
+     *         remaining.
+     * @throws IllegalStateException If the bitmap has not yet been resolved.
+     */
+    public void setPixels(IntBuffer src)
+    {
+        Bitmap current = pixelBitmap();
+        int len = current.getWidth() * current.getHeight();
+
+        if (src == null || src.remaining() < len)
+        {
+            throw new IllegalArgumentException("The buffer must contain at "
+                + "least " + len + " pixels");
+        }
+
+        if (src.hasArray() && src.position() == 0
+            && src.arrayOffset() == 0)
+        {
+            setPixels(src.array());
+        }
+        else
+        {
+            int[] pixels = new int[len];
+            src.duplicate().get(pixels);
+            setPixels(pixels);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Replaces each pixel in the image with the result of a function. Large
+     * images are processed on several threads at once, so the function must
+     * be safe to call from more than one thread.
+     *
+     * @param mapper The function to apply to each pixel.
+     * @throws IllegalStateException If the bitmap has not yet been resolved.
+     */
+    public void mapPixels(final PixelMapper mapper)
+    {
+        final Bitmap current = pixelBitmap();
+        final int width = current.getWidth();
+        int height = current.getHeight();
+        final int[] pixels = new int[width * height];
+        getPixels(pixels);
+
+        PixelOps.forEachRowBand(width, height, new PixelOps.RowTask() {
+            public void run(int firstRow, int endRow)
+            {
+                for (int y = firstRow; y < endRow; y++)
+                {
+                    int row = y * width;
+                    for (int x = 0; x < width; x++)
+                    {
+                        pixels[row + x] = mapper.map(x, y, pixels[row + x]);
+                    }
+                }
+            }
+        });
+
+        setPixels(pixels);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Converts the image to shades of gray, keeping its transparency.
+     *
+     * @throws IllegalStateException If the bitmap has not yet been resolved.
+     */
+    public void grayscale()
+    {
+        Bitmap current = pixelBitmap();
+        int width = current.getWidth();
+        int height = current.getHeight();
+        int[] pixels = new int[width * height];
+        getPixels(pixels);
+        PixelOps.grayscale(pixels, width, height);
+        setPixels(pixels);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Converts the image to black and white, keeping its transparency.
+     * Pixels whose brightness is at or above the specified level become
+     * white; the others become black.
+     *
+     * @param level The brightness (0-255) at which pixels become white.
+     * @throws IllegalStateException If the bitmap has not yet been resolved.
+     */
+    public void threshold(int level)
+    {
+        Bitmap current = pixelBitmap();
+        int width = current.getWidth();
+        int height = current.getHeight();
+        int[] pixels = new int[width * height];
+        getPixels(pixels);
+        PixelOps.threshold(pixels, width, height, level);
+        setPixels(pixels);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Blends this image toward another image of the same size.
+     *
+     * @param other  The image to blend toward.
+     * @param amount How far to blend, from 0 (leave this image unchanged)
+     *               to 1 (replace it with the other image).
+     * @throws IllegalArgumentException If the images are different sizes.
+     * @throws IllegalStateException If either bitmap has not yet been
+     *         resolved.
+     */
+    public void blend(Image other, float amount)
+    {
+        Bitmap current = pixelBitmap();
+        int width = current.getWidth();
+        int height = current.getHeight();
+
+        if (other.getWidth() != width || other.getHeight() != height)
+        {
+            throw new IllegalArgumentException("Cannot blend a "
+                + other.getWidth() + "x" + other.getHeight()
+                + " image into a " + width + "x" + height + " image");
+        }
+
+        int[] pixels = new int[width * height];
+        int[] otherPixels = new int[width * height];
+        getPixels(pixels);
+        other.getPixels(otherPixels);
+        PixelOps.blend(pixels, otherPixels, width, height, amount);
+        setPixels(pixels);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Convolves the image with a square kernel, such as a blur or sharpen
+     * filter, keeping its transparency. Pixels beyond the edges of the image
+     * are treated as copies of the nearest edge pixel.
+     *
+     * @param kernel The kernel weights, in row-major order.
+     * @param size   The width and height of the kernel, which must be odd.
+     * @throws IllegalArgumentException If the size is not odd, or the
+     *         kernel does not have size x size weights.
+     * @throws IllegalStateException If the bitmap has not yet been resolved.
+     */
+    public void convolve(float[] kernel, int size)
+    {
+        if (size <= 0 || size % 2 == 0)
+        {
+            throw new IllegalArgumentException(
+                "The kernel size must be a positive odd number");
+        }
+        if (kernel == null || kernel.length != size * size)
+        {
+            throw new IllegalArgumentException("The kernel must contain "
+                + (size * size) + " weights");
+        }
+
+        Bitmap current = pixelBitmap();
+        int width = current.getWidth();
+        int height = current.getHeight();
+        int[] pixels = new int[width * height];
+        int[] result = new int[width * height];
+        getPixels(pixels);
+        PixelOps.convolve(pixels, result, width, height, kernel, size);
+        setPixels(result);
+    }
+
+
+    // TODO: add media computation features here
+
+
+    //~ Package Methods .......................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a number that changes each time an image finishes decoding on a
+     * background thread, or has its pixels changed. Views compare it against
+     * the value they saw last to decide whether they need to redraw.
+     *
+     * @return The current content generation.
+     */
+    /*package*/ static int getContentGeneration()
+    {
+        return contentGeneration.get();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a version of this image's bitmap that is scaled down to fit
+     * within the specified size, to be drawn at about that size. Scaled
+     * versions are cached, so callers should round the size they draw at up
+     * to one of a few sizes, rather than asking for every exact size. If the
+     * scaled version is not available yet, it is created in the background
+     * and the full bitmap is returned in the meantime.
+     *
+     * @param width  The width to fit within, in pixels.
+     * @param height The height to fit within, in pixels.
+     * @return The scaled bitmap, or the full bitmap if it is already small
+     *         enough or the scaled one is not ready yet, or null if the image
+     *         has not been resolved.
+     */
+    /*package*/ Bitmap getVariant(int width, int height)
+    {
+        final Bitmap full = bitmap;
+
+        if (full == null || full.isRecycled() || isInAtlas())
+        {
+            return null;
+        }
+
+        final int fitWidth = Math.min(width, full.getWidth());
+        final int fitHeight = Math.min(height, full.getHeight());
+
+        if (fitWidth == full.getWidth() && fitHeight == full.getHeight())
+        {
+            return full;
+        }
+
+        synchronized (this)
+        {
+            if (ownsBitmap && full == bitmap)
+            {
+                // This image's pixels are its own, so its scaled copy is
+                // too, and is kept up to date as the pixels change.
+                return ownVariant(full, fitWidth, fitHeight);
+            }
+        }
+
+        final BitmapCache.Key key = cacheKey(fitWidth, fitHeight);
+
+        if (key == null)
+        {
+            return full;
+        }
+
+        Bitmap variant = bitmapCache.get(key);
+
+        if (variant != null)
+        {
+            return variant;
+        }
+
+        synchronized (pendingVariants)
+        {
+            if (!pendingVariants.add(key))
+            {
+                return full;
+            }
+        }
+
+        getDecodeExecutor().execute(new Runnable() {
+            public void run()
+            {
+                try
+                {
+                    bitmapCache.put(key, fitWithin(full, fitWidth, fitHeight));
+                }
+                finally
+                {
+                    synchronized (pendingVariants)
+                    {
+                        pendingVariants.remove(key);
+                    }
+
+                    contentGeneration.incrementAndGet();
+                }
+            }
+        });
+
+        return full;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the bitmap to draw this image from, and the part of it that holds
+     * this image.
+     *
+     * @param source Set to the region of the returned bitmap that holds this
+     *               image, or emptied if the image is the whole bitmap.
+     * @return The bitmap to draw from, or null if the image has not been
+     *         resolved.
+     */
+    /*package*/ synchronized Bitmap getSourceBitmap(Rect source)
+    {
+        if (atlasRegion != null)
+        {
+            source.set(atlasRegion);
+        }
+        else
+        {
+            source.setEmpty();
+        }
+
+        return bitmap;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Makes this image draw from a region of an atlas page instead of its
+     * own bitmap.
+     *
+     * @param page   The atlas page.
+     * @param region The region of the page that holds this image.
+     */
+    /*package*/ synchronized void placeInAtlas(Bitmap page, Rect region)
+    {
+        atlasRegion = new Rect(region);
+        bitmap = page;
+        ownsBitmap = false;
+        ownVariant = null;
+        resolved = true;
+    }
+
+
+    //~ Private Methods .......................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the scaled copy of a bitmap that this image owns, creating it if
+     * necessary and redrawing the parts of it whose pixels have changed
+     * since it was last used. The caller must hold this image's lock.
+     *
+     * @param full      The image's bitmap.
+     * @param fitWidth  The width to fit within, in pixels.
+     * @param fitHeight The height to fit within, in pixels.
+     * @return The scaled copy.
+     */
+    private Bitmap ownVariant(Bitmap full, int fitWidth, int fitHeight)
+    {
+        Bitmap variant = ownVariant;
+
+        // A scaled copy that fits the requested size touches it on at least
+        // one side (give or take rounding), without going over on either.
+        if (variant == null
+            || variant.getWidth() > fitWidth
+            || variant.getHeight() > fitHeight
+            || (variant.getWidth() < fitWidth - 1
+                && variant.getHeight() < fitHeight - 1))
+        {
+            Bitmap fitted = fitWithin(full, fitWidth, fitHeight);
+            variant = fitted.isMutable()
+                ? fitted : fitted.copy(Bitmap.Config.ARGB_8888, true);
+            ownVariant = variant;
+        }
+        else if (!dirtyRegion.isEmpty())
+        {
+            float scaleX = (float) variant.getWidth() / full.getWidth();
+            float scaleY = (float) variant.getHeight() / full.getHeight();
+
+            // Grow the region by a pixel, since filtering blends each scaled
+            // pixel with its neighbors.
+            Rect source = new Rect(dirtyRegion);
+            source.inset(-1, -1);
+            source.intersect(0, 0, full.getWidth(), full.getHeight());
+
+            RectF target = new RectF(source.left * scaleX,
+                source.top * scaleY, source.right * scaleX,
+                source.bottom * scaleY);
+
+            Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+            paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+            new Canvas(variant).drawBitmap(full, source, target, paint);
+        }
+
+        dirtyRegion.setEmpty();
+        return variant;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the bitmap whose pixels are read by the pixel methods.
+     *
+     * @return The bitmap.
+     * @throws IllegalStateException If the bitmap has not yet been resolved.
+     */
+    private Bitmap pixelBitmap()
+    {
+        detachFromAtlas();
+        Bitmap current = bitmap;
+
+        if (current == null)
+        {
+            throw new IllegalStateException("This method cannot be called "
+                + "until the bitmap has been resolved.");
+        }
+
+        return current;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the bitmap whose pixels are changed by the pixel methods. If the
+     * bitmap is shared with other images, or cannot be changed, it is first
+     * replaced with a private, mutable copy.
+     *
+     * @return The bitmap.
+     * @throws IllegalStateException If the bitmap has not yet been resolved.
+     */
+    private synchronized Bitmap writableBitmap()
+    {
+        Bitmap current = pixelBitmap();
+
+        if (!ownsBitmap || !current.isMutable())
+        {
+            current = current.copy(Bitmap.Config.ARGB_8888, true);
+            bitmap = current;
+            ownsBitmap = true;
+
+            // Scaled copies of the shared bitmap no longer match this one.
+            ownVariant = null;
+        }
+
+        return current;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Records that a region of the image's pixels has changed.
+     *
+     * @param x      The x coordinate of the left edge of the region.
+     * @param y      The y coordinate of the top edge of the region.
+     * @param width  The width of the region.
+     * @param height The height of the region.
+     */
+    private void markModified(int x, int y, int width, int height)
+    {
+        synchronized (this)
+        {
+            dirtyRegion.union(x, y, x + width, y + height);
+            modificationCount++;
+        }
+
+        contentGeneration.incrementAndGet();
+    }
+
+
+    // ----------------------------------------------------------
+    private static void checkPixelArray(int[] pixels, int width, int height)
+    {
+        if (pixels == null)
+        {
+            throw new IllegalArgumentException(
+                "The pixels parameter cannot be null");
+        }
+        if (pixels.length < width * height)
+        {
+            throw new IllegalArgumentException(
+                "The pixels parameter contains " + pixels.length
+                + " entries, but the " + width + "x" + height
+                + " region has " + (width * height) + " pixels");
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gives this image its own copy of its pixels, if it has been packed into
+     * an atlas page, so that it can be handed out or changed without
+     * affecting the other images on the page.
+     */
+    private synchronized void detachFromAtlas()
+    {
+        if (atlasRegion != null)
+        {
+            Rect region = atlasRegion;
+            bitmap = Bitmap.createBitmap(bitmap, region.left, region.top,
+                region.width(), region.height());
+            ownsBitmap = true;
+            atlasRegion = null;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Resolves this image against a context.
+     *
+     * @param context     The context to resolve this image against.
+     * @param lookInCache False if the caller has already found that the
+     *                    bitmap is not in the cache.
+     */
+    private void resolve(Context context, boolean lookInCache)
+    {
+        // Work on a local copy, so that other threads never see a partly
+        // resolved image.
+        Bitmap loaded = bitmap;
+
+        if (loaded != null && loaded.isRecycled())
+        {
+            loaded = null;
+        }
+
+        BitmapCache.Key key = null;
+
+        if (loaded == null)
+        {
+            key = cacheKey();
+
+            if (key != null && lookInCache)
+            {
+                loaded = bitmapCache.get(key);
+            }
+        }
+
+        if (loaded == null)
+        {
+//            System.out.println("Image.resolveAgainstContext(" + context + ")");
+            if (bitmapId != 0)
+            {
+                loaded = decodeResource(context.getResources(),
+                    bitmapId, maxWidth, maxHeight);
+//                System.out.println("id " + Integer.toString(bitmapId, 16)
+//                    + " = " + bitmap);
+            }
+            else
+            {
+                // Find stream based on parameters
+                if (fileName != null)
+                {
+                    loaded = JarResources.getBitmap(
+                        context, fileName, true, scaleForDpi, "");
+//                    System.out.println(
+//                        "fileName " + fileName + " = " + stream);
+                }
+                else if (klass != null)
+                {
+                    loaded = bitmapFor(context, klass, scaleForDpi);
+//                    System.out.println(
+//                        "class " + klass.getName() + " = " + stream);
+                }
+            }
+
+            if (loaded != null)
+            {
+                loaded = fitWithin(loaded, maxWidth, maxHeight);
+            }
+
+            if (loaded != null && key != null)
+            {
+                bitmapCache.put(key, loaded);
+            }
+        }
+
+        if (loaded == null && useDefault)
+        {
+            if (defaultImage == null)
+            {
+                BitmapFactory.Options bfo = null;
+                if (!scaleForDpi)
+                {
+                    bfo = new BitmapFactory.Options();
+                    bfo.inScaled = false;
+                }
+                // Default to generic logo
+                defaultImage = Bitmap.createBitmap(
+                        16, 16, Bitmap.Config.ARGB_8888);
+                /*defaultImage = BitmapFactory.decodeResource(
+                    context.getResources(),
+                    R.drawable.sofia_default_image, bfo);*/
+//                System.out.println("loading default image = " + bitmap);
+            }
+            loaded = defaultImage;
+//            System.out.println("bitmap = default image = " + bitmap);
+        }
+
+//        if (bitmap != null)
+//        {
+//            System.out.println("bitmap " + bitmap + " " + bitmap.getWidth()
+//                + "x" + bitmap.getHeight() + " density = " +
+//                bitmap.getDensity());
+//            System.out.println("target density = " +
+//                context.getResources().getDisplayMetrics().densityDpi);
+//        }
+
+        synchronized (this)
+        {
+            if (loaded != bitmap)
+            {
+                bitmap = loaded;
+                ownsBitmap = false;
+                ownVariant = null;
+            }
+
+            resolved = true;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private synchronized void finishBackgroundResolve()
+    {
+        pendingResolve = null;
+        contentGeneration.incrementAndGet();
+    }
+
+
+    // ----------------------------------------------------------
+    private static synchronized ExecutorService getDecodeExecutor()
+    {
+        if (decodeExecutor == null)
+        {
+            decodeExecutor = Executors.newFixedThreadPool(DECODE_THREADS,
+                new ThreadFactory() {
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread =
+                            new Thread(runnable, "Sofia image decoder");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        }
+
+        return decodeExecutor;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the key under which this image's decoded bitmap is cached.
+     *
+     * @return the cache key, or null if this image is not loaded from a
+     *     resource id, file name, or class
+     */
+    private BitmapCache.Key cacheKey()
+    {
+        return cacheKey(maxWidth, maxHeight);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the key under which this image's bitmap, scaled to fit within the
+     * specified size, is cached.
+     *
+     * @param width  The width the bitmap fits within, or 0 for no limit.
+     * @param height The height the bitmap fits within, or 0 for no limit.
+     * @return the cache key, or null if this image is not loaded from a
+     *     resource id, file name, or class
+     */
+    private BitmapCache.Key cacheKey(int width, int height)
+    {
+        if (bitmapId != 0)
+        {
+            return new BitmapCache.Key(BitmapCache.Source.RESOURCE,
+                    bitmapId, scaleForDpi, width, height);
+        }
+        else if (fileName != null)
+        {
+            return new BitmapCache.Key(BitmapCache.Source.FILE,
+                    fileName, scaleForDpi, width, height);
+        }
+        else if (klass != null)
+        {
+            return new BitmapCache.Key(BitmapCache.Source.CLASS,
+                    klass, scaleForDpi, width, height);
+        }
+        else
+        {
+            return null;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Decodes a bitmap resource, subsampling it while decoding if it is much
+     * larger than the specified size.
+     *
+     * @param resources The resources to decode from.
+     * @param id        The id of the bitmap resource.
+     * @param maxWidth  The width the bitmap will fit within, or 0 for no
+     *                  limit.
+     * @param maxHeight The height the bitmap will fit within, or 0 for no
+     *                  limit.
+     * @return The decoded bitmap, which may still be larger than the
+     *         specified size, or null if it could not be decoded.
+     */
+    private static Bitmap decodeResource(
+        Resources resources, int id, int maxWidth, int maxHeight)
+    {
+        if (maxWidth == 0 && maxHeight == 0)
+        {
+            return BitmapFactory.decodeResource(resources, id);
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(resources, id, options);
+
+        // Each halving must still leave the bitmap at least as large as the
+        // limit, so that the final scale only ever shrinks it.
+        int sampleSize = 1;
+        while ((maxWidth == 0 || options.outWidth / (sampleSize * 2)
+                    >= maxWidth)
+            && (maxHeight == 0 || options.outHeight / (sampleSize * 2)
+                    >= maxHeight))
+        {
+            sampleSize *= 2;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        return BitmapFactory.decodeResource(resources, id, options);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Scales a bitmap down, keeping its aspect ratio, so that it fits within
+     * the specified size.
+     *
+     * @param source    The bitmap to scale.
+     * @param maxWidth  The width to fit within, or 0 for no limit.
+     * @param maxHeight The height to fit within, or 0 for no limit.
+     * @return The scaled bitmap, or the source bitmap if it already fits.
+     */
+    private static Bitmap fitWithin(Bitmap source, int maxWidth, int maxHeight)
+    {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        float scale = 1;
+
+        if (maxWidth > 0 && width > maxWidth)
+        {
+            scale = (float) maxWidth / width;
+        }
+
+        if (maxHeight > 0 && height > maxHeight)
+        {
+            scale = Math.min(scale, (float) maxHeight / height);
+        }
+
+        if (scale >= 1)
+        {
+            return source;
+        }
+
+        return Bitmap.createScaledBitmap(source,
+            Math.max(1, Math.round(width * scale)),
+            Math.max(1, Math.round(height * scale)),
+            true);
+    }
+
+
+    // ----------------------------------------------------------
+    private static Bitmap bitmapFor(
+        Context context, Class<?> cls, boolean scaleForDpi)
+    {
+        Bitmap bm = null;
+        while (bm == null && cls != null)
+        {
+            if (bm == null)
+            {
+                bm = JarResources.getBitmap(context,
+                    cls.getName().replace('.', '/'), true, scaleForDpi, "");
+            }
+            if (bm == null)
+            {
+                bm = JarResources.getBitmap(context,
+                    cls.getName().toLowerCase().replace('.', '/'),
+                    true, scaleForDpi, "");
+            }
+            if (bm == null)
+            {
+                bm = JarResources.getBitmap(context,
+                    cls.getSimpleName(), true, scaleForDpi,
+                    cls.getPackage().getName(), "");
+            }
+            if (bm == null)
+            {
+                bm = JarResources.getBitmap(context,
+                    cls.getSimpleName().toLowerCase(), true, scaleForDpi,
+                    cls.getPackage().getName(), "");
+            }
+            cls = cls.getSuperclass();
+        }
+        return bm;
+    }
+
+
+    //~ Nested Classes ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * A function that computes a new value for each pixel of an image, used
+     * with {@link Image#mapPixels(PixelMapper)}.
+     */
+    public interface PixelMapper
+    {
+        // ----------------------------------------------------------
+        /**
+         * Computes the new value of a pixel.
+         *
+         * @param x    The x coordinate of the pixel.
+         * @param y    The y coordinate of the pixel.
+         * @param argb The current value of the pixel, as packed ARGB.
+         * @return The new value of the pixel, as packed ARGB.
+         */
+        int map(int x, int y, int argb);
     }
 }
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2011 Virginia Tech Department of Computer Science
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sofia.graphics;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+//-------------------------------------------------------------------------
+/**
+ * <p>
+ * Packs many small images into a few large bitmaps (called pages), so that
+ * drawing a scene full of sprites draws from a handful of bitmaps instead of
+ * one per sprite, and so that the per-bitmap memory overhead is paid once
+ * per page instead of once per image. Images are added to the atlas and then
+ * packed all at once, typically when a screen is loaded:
+ * </p>
+ * <pre>
+ *     ImageAtlas atlas = new ImageAtlas();
+ *     atlas.add(new Image(Ship.class), new Image(Rock.class), ...);
+ *     atlas.pack(this);
+ * </pre>
+ * <p>
+ * After packing, each image draws from a region of one of the pages. Images
+ * that are too large to fit on a page are left as they are. Calling
+ * {@link Image#asBitmap()} on a packed image, or reading or changing its
+ * pixels, gives it a separate copy of its pixels again.
+ * </p>
+ *
+ * @author agent (agent@local)
+ */
+public class ImageAtlas
+{
+    //~ Fields ................................................................
+
+    private final int pageWidth;
+    private final int pageHeight;
+    private final List<Image> images;
+    private final List<Bitmap> pages;
+
+    private static final int DEFAULT_PAGE_SIZE = 1024;
+
+    // Empty pixels left around each image, so that bitmap filtering does not
+    // blend in the edges of its neighbors
+    private static final int PADDING = 1;
+
+
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new, empty atlas with 1024x1024 pixel pages.
+     */
+    public ImageAtlas()
+    {
+        this(DEFAULT_PAGE_SIZE, DEFAULT_PAGE_SIZE);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new, empty atlas with pages of the specified size.
+     *
+     * @param pageWidth  The width of each page, in pixels.
+     * @param pageHeight The height of each page, in pixels.
+     */
+    public ImageAtlas(int pageWidth, int pageHeight)
+    {
+        if (pageWidth <= 0 || pageHeight <= 0)
+        {
+            throw new IllegalArgumentException(
+                "The size of an atlas page must be positive.");
+        }
+
+        this.pageWidth = pageWidth;
+        this.pageHeight = pageHeight;
+        images = new ArrayList<Image>();
+        pages = new ArrayList<Bitmap>();
+    }
+
+
+    //~ Public Methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Adds images to be packed the next time {@link #pack(Context)} is
+     * called.
+     *
+     * @param newImages The images to add.
+     */
+    public void add(Image... newImages)
+    {
+        for (Image image : newImages)
+        {
+            if (image != null)
+            {
+                images.add(image);
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Loads all of the images that have been added to this atlas, and packs
+     * them into pages. Images that share the same bitmap (because they were
+     * loaded from the same source) share the same region of a page.
+     *
+     * @param context The context to resolve the images against.
+     */
+    public void pack(Context context)
+    {
+        // Find the distinct bitmaps to pack, and the images that use each.
+        IdentityHashMap<Bitmap, List<Image>> users =
+            new IdentityHashMap<Bitmap, List<Image>>();
+        List<Bitmap> bitmaps = new ArrayList<Bitmap>();
+
+        for (Image image : images)
+        {
+            if (image.isInAtlas())
+            {
+                continue;
+            }
+
+            image.resolveAgainstContext(context);
+            Bitmap bitmap = image.asBitmap();
+
+            if (bitmap == null
+                || bitmap.getWidth() + PADDING * 2 > pageWidth
+                || bitmap.getHeight() + PADDING * 2 > pageHeight)
+            {
+                continue;
+            }
+
+            List<Image> sharing = users.get(bitmap);
+
+            if (sharing == null)
+            {
+                sharing = new ArrayList<Image>();
+                users.put(bitmap, sharing);
+                bitmaps.add(bitmap);
+            }
+
+            sharing.add(image);
+        }
+
+        images.clear();
+
+        // Shelf packing: place the tallest bitmaps first, left to right in
+        // rows ("shelves") as tall as the first bitmap in each row.
+        Collections.sort(bitmaps, new Comparator<Bitmap>() {
+            public int compare(Bitmap bitmap1, Bitmap bitmap2)
+            {
+                return bitmap2.getHeight() - bitmap1.getHeight();
+            }
+        });
+
+        List<Rect> regions = new ArrayList<Rect>(bitmaps.size());
+        List<Integer> pageIndices = new ArrayList<Integer>(bitmaps.size());
+        List<Integer> pageHeights = new ArrayList<Integer>();
+
+        int page = -1;
+        int x = pageWidth;
+        int shelfTop = 0;
+        int shelfHeight = 0;
+
+        for (Bitmap bitmap : bitmaps)
+        {
+            int width = bitmap.getWidth() + PADDING * 2;
+            int height = bitmap.getHeight() + PADDING * 2;
+
+            if (x + width > pageWidth)
+            {
+                // Start a new shelf, on a new page if this one is full.
+                x = 0;
+                shelfTop += shelfHeight;
+                shelfHeight = height;
+
+                if (page < 0 || shelfTop + height > pageHeight)
+                {
+                    page++;
+                    shelfTop = 0;
+                    pageHeights.add(0);
+                }
+            }
+
+            regions.add(new Rect(x + PADDING, shelfTop + PADDING,
+                x + PADDING + bitmap.getWidth(),
+                shelfTop + PADDING + bitmap.getHeight()));
+            pageIndices.add(page);
+            pageHeights.set(page,
+                Math.max(pageHeights.get(page), shelfTop + height));
+
+            x += width;
+        }
+
+        // Draw the bitmaps into their pages, trimming each page to the
+        // height it actually uses.
+        int firstPage = pages.size();
+        List<Canvas> canvases = new ArrayList<Canvas>(pageHeights.size());
+
+        for (int height : pageHeights)
+        {
+            Bitmap pageBitmap = Bitmap.createBitmap(
+                pageWidth, height, Bitmap.Config.ARGB_8888);
+            pages.add(pageBitmap);
+            canvases.add(new Canvas(pageBitmap));
+        }
+
+        for (int i = 0; i < bitmaps.size(); i++)
+        {
+            Bitmap bitmap = bitmaps.get(i);
+            Rect region = regions.get(i);
+            int index = pageIndices.get(i);
+
+            // Drawing into an explicit rectangle keeps the canvas from
+            // rescaling bitmaps whose density differs from the page's.
+            canvases.get(index).drawBitmap(bitmap, null, region, null);
+
+            Bitmap pageBitmap = pages.get(firstPage + index);
+
+            for (Image image : users.get(bitmap))
+            {
+                image.placeInAtlas(pageBitmap, region);
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the number of pages that have been packed so far.
+     *
+     * @return The number of pages in this atlas.
+     */
+    public int getPageCount()
+    {
+        return pages.size();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets one of the pages that the images have been packed into.
+     *
+     * @param index The index of the page.
+     * @return The page's bitmap.
+     */
+    public Bitmap getPage(int index)
+    {
+        return pages.get(index);
+    }
+}
@@ -18,12 +18,14 @@ package sofia.graphics;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.Paint;
-import android.graphics.Path;
 import android.graphics.PointF;
+import android.graphics.Rect;
 import android.graphics.RectF;
+import android.graphics.Shader;
 
 //-------------------------------------------------------------------------
 /**
@@ -38,6 +40,37 @@ public class ImageFill extends Fill
     private Image image;
     private boolean clip;
     private Paint paint;
+    private Fill placeholder;
+
+    // The rest of these fields are scratch space for a single fill; one
+    // ImageFill is often shared by many shapes, so the fill methods are
+    // synchronized to keep two threads from using them at once.
+    private final Rect sourceRect = new Rect();
+
+    // Clipped ovals and polygons are filled by drawing their outlines with a
+    // shader that paints the image, which is much faster than clipping the
+    // canvas to them. The shader is rebuilt only when the bitmap changes.
+    private Paint shaderPaint;
+    private BitmapShader shader;
+    private Bitmap shaderBitmap;
+    private final Matrix shaderMatrix = new Matrix();
+    private final RectF shaderSource = new RectF();
+
+    // The bitmap chosen the last time the image was drawn, and what it was
+    // chosen for; the scaled copies are only looked up again when the size
+    // bucket, the image's bitmap, or the content generation changes
+    private Bitmap lastSource;
+    private Bitmap lastBitmap;
+    private int lastBucketWidth;
+    private int lastBucketHeight;
+    private int lastGeneration;
+
+    // Reused from one fill to the next
+    private final RectF sortedBounds = new RectF();
+
+    // Bounds on the sizes of the scaled copies that images are drawn from
+    private static final int MIN_BUCKET = 16;
+    private static final int MAX_BUCKET = 1 << 14;
 
 
     //~ Constructors ..........................................................
@@ -96,6 +129,34 @@ public class ImageFill extends Fill
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Gets the fill that is drawn in place of the image while the image is
+     * being decoded in the background.
+     *
+     * @return the placeholder fill, or null if nothing is drawn
+     */
+    public Fill getPlaceholder()
+    {
+        return placeholder;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sets the fill that is drawn in place of the image while the image is
+     * being decoded in the background. Images are decoded in the background
+     * the first time they are drawn, unless they have already been resolved
+     * (see {@link Image#prefetch(Context, Image...)}).
+     *
+     * @param placeholder the placeholder fill, or null to draw nothing
+     */
+    public void setPlaceholder(Fill placeholder)
+    {
+        this.placeholder = placeholder;
+    }
+
+
     // ----------------------------------------------------------
     /**
      * Fills the specified region on a canvas.
@@ -104,27 +165,35 @@ public class ImageFill extends Fill
      * @param bounds the bounds
      */
     @Override
-    public void fillRect(Drawing drawing, int alpha, RectF bounds)
+    public synchronized void fillRect(
+            Drawing drawing, int alpha, RectF bounds)
     {
         resolveBitmapIfNecessary(drawing.getContext());
 
+        RectF sortedBounds = this.sortedBounds;
+        sortedBounds.set(bounds);
+        sortedBounds.sort();
+
+        CoordinateSystem cs = drawing.getCoordinateSystem();
+
         // In some cases, the bitmap may be missing...
-        Bitmap bm = image.asBitmap();
-        if (bm != null)
+        Bitmap bm = bitmapToDraw(cs, sortedBounds);
+        if (bm == null && placeholder != null && image.isResolving())
+        {
+            placeholder.fillRect(drawing, alpha, bounds);
+        }
+        else if (bm != null)
         {
             int oldAlpha = paint.getAlpha();
             paint.setAlpha(alpha);
 
             Canvas canvas = drawing.getCanvas();
-
-            RectF sortedBounds = new RectF(bounds);
-            sortedBounds.sort();
+            Rect source = sourceRect.isEmpty() ? null : sourceRect;
 
             // If the coordinate system is flipped in either direction, we need
             // to do another temporary flip to ensure that the images are drawn
             // in their native orientation.
 
-            CoordinateSystem cs = drawing.getCoordinateSystem();
             boolean flipX = cs.isFlippedX();
             boolean flipY = cs.isFlippedY();
 
@@ -140,7 +209,7 @@ public class ImageFill extends Fill
                 canvas.concat(matrix);
             }
 
-            canvas.drawBitmap(bm, null, sortedBounds, paint);
+            canvas.drawBitmap(bm, source, sortedBounds, paint);
             paint.setAlpha(oldAlpha);
 
             if (flipX || flipY)
@@ -159,9 +228,28 @@ public class ImageFill extends Fill
      * @param bounds the bounds
      */
     @Override
-    public void fillOval(Drawing drawing, int alpha, RectF bounds)
+    public synchronized void fillOval(
+            Drawing drawing, int alpha, RectF bounds)
     {
-        fillRect(drawing, alpha, bounds);
+        if (!clip)
+        {
+            fillRect(drawing, alpha, bounds);
+            return;
+        }
+
+        RectF sortedBounds = this.sortedBounds;
+        sortedBounds.set(bounds);
+        sortedBounds.sort();
+
+        Paint filler = shaderPaintFor(drawing, alpha, sortedBounds);
+        if (filler != null)
+        {
+            drawing.getCanvas().drawOval(sortedBounds, filler);
+        }
+        else if (placeholder != null && image.isResolving())
+        {
+            placeholder.fillOval(drawing, alpha, bounds);
+        }
     }
 
 
@@ -173,57 +261,181 @@ public class ImageFill extends Fill
      * @param bounds the bounds
      */
     @Override
-    public void fillPolygon(Drawing drawing, int alpha, Polygon polygon,
-            PointF origin)
+    public synchronized void fillPolygon(
+            Drawing drawing, int alpha, Polygon polygon, PointF origin)
     {
-        if (clip)
+        RectF bounds = polygon.getBounds();
+
+        if (!clip)
         {
-            drawing.getCanvas().save();
-            drawing.getCanvas().clipPath(pathForPolygon(polygon, origin));
+            bounds.offset(origin.x, origin.y);
+            fillRect(drawing, alpha, bounds);
+            return;
         }
 
-        RectF bounds = polygon.getBounds();
-        bounds.offset(origin.x, origin.y);
-        fillRect(drawing, alpha, bounds);
-
-        if (clip)
+        // The polygon's path is cached in its own coordinate space, so the
+        // shader is positioned there too and the canvas is moved instead.
+        Paint filler = shaderPaintFor(drawing, alpha, bounds);
+        if (filler != null)
         {
-            drawing.getCanvas().restore();
+            Canvas canvas = drawing.getCanvas();
+            canvas.translate(origin.x, origin.y);
+            canvas.drawPath(polygon.getPath(), filler);
+            canvas.translate(-origin.x, -origin.y);
+        }
+        else if (placeholder != null && image.isResolving())
+        {
+            placeholder.fillPolygon(drawing, alpha, polygon, origin);
         }
     }
 
 
     // ----------------------------------------------------------
-    private static Path pathForPolygon(Polygon polygon, PointF origin)
+    /**
+     * Gets the bitmap to draw the image from at the specified size. Images
+     * packed into an atlas are drawn from their region of the atlas page,
+     * which is stored in {@code sourceRect}; otherwise, {@code sourceRect}
+     * is left empty. Large images drawn into small areas are drawn from a
+     * scaled down copy, which uses less memory and is faster to draw.
+     *
+     * @param cs the coordinate system being drawn in
+     * @param sortedBounds the bounds the image will fill
+     * @return the bitmap to draw, or null if the image is not ready
+     */
+    private Bitmap bitmapToDraw(CoordinateSystem cs, RectF sortedBounds)
     {
-        Path path = new Path();
-        path.incReserve(polygon.size());
+        Bitmap bm = image.getSourceBitmap(sourceRect);
 
-        for (int i = 0; i < polygon.size(); i++)
+        if (bm != null && sourceRect.isEmpty())
         {
-            PointF pt = polygon.get(i);
-            if (i == 0)
+            int bucketWidth =
+                sizeBucket(sortedBounds.width() * cs.getDeviceScaleX());
+            int bucketHeight =
+                sizeBucket(sortedBounds.height() * cs.getDeviceScaleY());
+            int generation = Image.getContentGeneration();
+
+            if (bm == lastSource
+                && bucketWidth == lastBucketWidth
+                && bucketHeight == lastBucketHeight
+                && generation == lastGeneration)
             {
-                path.moveTo(origin.x + pt.x, origin.y + pt.y);
-            }
-            else
-            {
-                path.lineTo(origin.x + pt.x, origin.y + pt.y);
+                return lastBitmap;
             }
+
+            Bitmap variant = image.getVariant(bucketWidth, bucketHeight);
+
+            lastSource = bm;
+            lastBucketWidth = bucketWidth;
+            lastBucketHeight = bucketHeight;
+            lastGeneration = generation;
+            lastBitmap = (variant != null) ? variant : bm;
+
+            return lastBitmap;
         }
 
-        path.close();
+        return bm;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Prepares a paint whose shader stretches the image over the specified
+     * bounds, in the image's native orientation even if the coordinate
+     * system is flipped. Any shape drawn with the paint inside those bounds
+     * is filled with the corresponding part of the image.
+     *
+     * @param drawing the {@link Drawing} object
+     * @param alpha the alpha to draw with
+     * @param sortedBounds the bounds the image will fill
+     * @return the paint, or null if the image is not ready
+     */
+    private Paint shaderPaintFor(Drawing drawing, int alpha,
+            RectF sortedBounds)
+    {
+        resolveBitmapIfNecessary(drawing.getContext());
+
+        CoordinateSystem cs = drawing.getCoordinateSystem();
+        Bitmap bm = bitmapToDraw(cs, sortedBounds);
+
+        if (bm == null)
+        {
+            return null;
+        }
+
+        if (shaderPaint == null)
+        {
+            shaderPaint = new Paint(paint);
+        }
+
+        if (bm != shaderBitmap)
+        {
+            shaderBitmap = bm;
+            shader = new BitmapShader(
+                    bm, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+            shaderPaint.setShader(shader);
+        }
+
+        if (sourceRect.isEmpty())
+        {
+            shaderSource.set(0, 0, bm.getWidth(), bm.getHeight());
+        }
+        else
+        {
+            shaderSource.set(sourceRect);
+        }
+
+        shaderMatrix.setRectToRect(
+                shaderSource, sortedBounds, Matrix.ScaleToFit.FILL);
+
+        if (cs.isFlippedX() || cs.isFlippedY())
+        {
+            shaderMatrix.postScale(
+                    cs.isFlippedX() ? -1 : 1, cs.isFlippedY() ? -1 : 1,
+                    sortedBounds.centerX(), sortedBounds.centerY());
+        }
+
+        shader.setLocalMatrix(shaderMatrix);
+        shaderPaint.setAlpha(alpha);
+
+        return shaderPaint;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Rounds the size at which an image is drawn up to the next power of
+     * two, so that an image drawn at many slightly different sizes only
+     * needs a few scaled copies.
+     *
+     * @param size the size at which the image is drawn, in device pixels
+     * @return the size of the scaled copy to draw from
+     */
+    private static int sizeBucket(float size)
+    {
+        if (!(size > 0) || Float.isInfinite(size) || size > MAX_BUCKET)
+        {
+            return MAX_BUCKET;
+        }
+
+        int bucket = MIN_BUCKET;
+        while (bucket < size)
+        {
+            bucket *= 2;
+        }
 
-        return path;
+        return bucket;
     }
 
 
     // ----------------------------------------------------------
     private void resolveBitmapIfNecessary(Context context)
     {
-        if (image != null && image.asBitmap() == null)
+        // Drawing happens in the middle of a frame, so rather than decoding
+        // here, decode in the background and draw the image once it is
+        // ready. Bitmaps that are already cached are picked up immediately.
+        if (image != null && !image.isResolved())
         {
-            image.resolveAgainstContext(context);
+            image.resolveInBackground(context);
         }
     }
 }
@@ -155,13 +155,37 @@ public class LineShape extends StrokedShape
     {
         Canvas canvas = drawing.getCanvas();
         Paint paint = getPaint();
-        RectF bounds = getBounds();
+        RectF bounds = getDrawingBounds(drawing);
 
         canvas.drawLine(bounds.left, bounds.top, bounds.right, bounds.bottom,
             paint);
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Gets the bounds to draw this shape in, centered on the position
+     * recorded for it in the frame being drawn, if there is one.
+     *
+     * @param drawing the {@link Drawing} the shape is being drawn on
+     * @return the bounds to draw the shape in
+     */
+    @Override
+    protected RectF getDrawingBounds(Drawing drawing)
+    {
+        RectF bounds = getBounds();
+        PointF recorded = drawing.getShapePosition();
+
+        if (recorded != null)
+        {
+            bounds.offset(recorded.x - bounds.centerX(),
+                    recorded.y - bounds.centerY());
+        }
+
+        return bounds;
+    }
+
+
     // ----------------------------------------------------------
     @Override
     public boolean contains(float x, float y)
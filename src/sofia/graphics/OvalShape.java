@@ -137,21 +137,19 @@ public class OvalShape extends FillableShape
 
     // ----------------------------------------------------------
     @Override
-    protected Paint getPaint()
+    protected void configurePaint(Paint paint)
     {
-        Paint paint = super.getPaint();
+        super.configurePaint(paint);
         paint.setAntiAlias(true);
-        return paint;
     }
 
 
     // ----------------------------------------------------------
     @Override
-    protected Paint getFillPaint()
+    protected void configureFillPaint(Paint paint)
     {
-        Paint paint = super.getFillPaint();
+        super.configureFillPaint(paint);
         paint.setAntiAlias(true);
-        return paint;
     }
 
 
@@ -211,7 +209,7 @@ public class OvalShape extends FillableShape
     @Override
     public void draw(Drawing drawing)
     {
-        RectF bounds = getBounds();
+        RectF bounds = getDrawingBounds(drawing);
         Canvas canvas = drawing.getCanvas();
 
         if (isFilled())
@@ -228,6 +226,30 @@ public class OvalShape extends FillableShape
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Gets the bounds to draw this shape in, centered on the position
+     * recorded for it in the frame being drawn, if there is one.
+     *
+     * @param drawing the {@link Drawing} the shape is being drawn on
+     * @return the bounds to draw the shape in
+     */
+    @Override
+    protected RectF getDrawingBounds(Drawing drawing)
+    {
+        RectF bounds = getBounds();
+        PointF recorded = drawing.getShapePosition();
+
+        if (recorded != null)
+        {
+            bounds.offset(recorded.x - bounds.centerX(),
+                    recorded.y - bounds.centerY());
+        }
+
+        return bounds;
+    }
+
+
     // ----------------------------------------------------------
     @Override
     protected void createFixtures()
@@ -18,6 +18,7 @@ package sofia.graphics;
 
 import sofia.graphics.internal.BayazitDecomposer;
 import sofia.graphics.internal.DouglasPeuckerReducer;
+import android.graphics.Path;
 import android.graphics.PointF;
 import android.graphics.RectF;
 import java.util.ArrayList;
@@ -45,6 +46,7 @@ public class Polygon implements Iterable<PointF>
     private List<Polygon> cachedDecomposition;
     private PointF cachedCentroid;
     private RectF cachedBounds;
+    private Path cachedPath;
 
 
     //~ Constructors ..........................................................
@@ -261,6 +263,43 @@ public class Polygon implements Iterable<PointF>
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Gets a closed path through the vertices of this polygon, in the
+     * polygon's local coordinate space. The path is built once and reused
+     * until the polygon changes, so callers must not modify it; to draw the
+     * polygon somewhere else, translate the canvas instead.
+     *
+     * @return the outline of the polygon
+     */
+    /*package*/ Path getPath()
+    {
+        if (cachedPath == null)
+        {
+            Path path = new Path();
+            path.incReserve(points.size());
+
+            for (int i = 0; i < points.size(); i++)
+            {
+                PointF pt = points.get(i);
+                if (i == 0)
+                {
+                    path.moveTo(pt.x, pt.y);
+                }
+                else
+                {
+                    path.lineTo(pt.x, pt.y);
+                }
+            }
+
+            path.close();
+            cachedPath = path;
+        }
+
+        return cachedPath;
+    }
+
+
     // ----------------------------------------------------------
     /**
      * Gets an iterator that can be used to iterate over the vertices in the
@@ -289,6 +328,8 @@ public class Polygon implements Iterable<PointF>
             point.x -= center.x;
             point.y -= center.y;
         }
+
+        flushCache();
     }
 
 
@@ -373,6 +414,7 @@ public class Polygon implements Iterable<PointF>
         cachedDecomposition = null;
         cachedCentroid = null;
         cachedBounds = null;
+        cachedPath = null;
     }
 
 
@@ -16,7 +16,6 @@
 
 package sofia.graphics;
 
-import android.graphics.Path;
 import sofia.graphics.internal.Box2DUtils;
 import android.graphics.Canvas;
 import android.graphics.Paint;
@@ -115,7 +114,7 @@ public class PolygonShape extends FillableShape
     @Override
     public void draw(Drawing drawing)
     {
-        PointF origin = getPosition();
+        PointF origin = getDrawingPosition(drawing);
         Canvas canvas = drawing.getCanvas();
 
         if (isFilled())
@@ -125,22 +124,9 @@ public class PolygonShape extends FillableShape
 
         if (!getColor().isTransparent())
         {
-            Path path = new Path();
-            path.incReserve(polygon.size());
-            for (int i = 0; i < polygon.size(); i++)
-            {
-                PointF pt = polygon.get(i);
-                if (i == 0)
-                {
-                    path.moveTo(origin.x + pt.x, origin.y + pt.y);
-                }
-                else
-                {
-                    path.lineTo(origin.x + pt.x, origin.y + pt.y);
-                }
-            }
-            path.close();
-            drawing.getCanvas().drawPath(path, getPaint());
+            canvas.translate(origin.x, origin.y);
+            canvas.drawPath(polygon.getPath(), getPaint());
+            canvas.translate(-origin.x, -origin.y);
         }
     }
 
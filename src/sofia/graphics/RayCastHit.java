@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2011 Virginia Tech Department of Computer Science
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sofia.graphics;
+
+import android.graphics.PointF;
+
+//-------------------------------------------------------------------------
+/**
+ * Describes the point at which a ray cast with one of the {@code rayCast}
+ * methods of {@link ShapeField} hit a shape.
+ *
+ * @author agent (agent@local)
+ */
+public class RayCastHit
+{
+    //~ Fields ................................................................
+
+    private final Shape shape;
+    private final PointF point;
+    private final PointF normal;
+    private final float fraction;
+
+
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new ray cast hit.
+     *
+     * @param shape the shape that was hit
+     * @param point the point where the ray hit the shape
+     * @param normal the normal of the shape's surface at that point
+     * @param fraction the distance along the ray to the point, as a fraction
+     *     of the ray's length
+     */
+    /*package*/ RayCastHit(Shape shape, PointF point, PointF normal,
+            float fraction)
+    {
+        this.shape = shape;
+        this.point = point;
+        this.normal = normal;
+        this.fraction = fraction;
+    }
+
+
+    //~ Methods ...............................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the shape that was hit.
+     *
+     * @return the shape that was hit
+     */
+    public Shape getShape()
+    {
+        return shape;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the point where the ray first touched the shape.
+     *
+     * @return the point where the ray hit the shape
+     */
+    public PointF getPoint()
+    {
+        return new PointF(point.x, point.y);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the unit normal of the shape's surface at the point where the ray
+     * hit it.
+     *
+     * @return the surface normal at the hit point
+     */
+    public PointF getNormal()
+    {
+        return new PointF(normal.x, normal.y);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the distance from the start of the ray to the hit point, as a
+     * fraction of the ray's length (0 at the start of the ray, 1 at its end).
+     *
+     * @return the fraction of the ray's length at which the shape was hit
+     */
+    public float getFraction()
+    {
+        return fraction;
+    }
+
+
+    // ----------------------------------------------------------
+    @Override
+    public String toString()
+    {
+        return "RayCastHit(" + shape + " at " + Geometry.toString(point)
+                + ", fraction " + fraction + ")";
+    }
+}
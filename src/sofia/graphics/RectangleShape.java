@@ -18,6 +18,7 @@ package sofia.graphics;
 
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.graphics.PointF;
 import android.graphics.RectF;
 
 import org.jbox2d.collision.shapes.PolygonShape;
@@ -139,7 +140,7 @@ public class RectangleShape extends FillableShape
     @Override
     public void draw(Drawing drawing)
     {
-        RectF bounds = getBounds();
+        RectF bounds = getDrawingBounds(drawing);
         Canvas canvas = drawing.getCanvas();
 
         if (isFilled())
@@ -156,6 +157,30 @@ public class RectangleShape extends FillableShape
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Gets the bounds to draw this shape in, centered on the position
+     * recorded for it in the frame being drawn, if there is one.
+     *
+     * @param drawing the {@link Drawing} the shape is being drawn on
+     * @return the bounds to draw the shape in
+     */
+    @Override
+    protected RectF getDrawingBounds(Drawing drawing)
+    {
+        RectF bounds = getBounds();
+        PointF recorded = drawing.getShapePosition();
+
+        if (recorded != null)
+        {
+            bounds.offset(recorded.x - bounds.centerX(),
+                    recorded.y - bounds.centerY());
+        }
+
+        return bounds;
+    }
+
+
     // ----------------------------------------------------------
     @Override
     protected void createFixtures()
@@ -41,6 +41,7 @@ import org.jbox2d.common.Vec2;
 import org.jbox2d.dynamics.Body;
 import org.jbox2d.dynamics.BodyDef;
 import org.jbox2d.dynamics.BodyType;
+import org.jbox2d.dynamics.Filter;
 import org.jbox2d.dynamics.Fixture;
 import org.jbox2d.dynamics.FixtureDef;
 
@@ -82,6 +83,44 @@ public abstract class Shape
     private float friction;
     private boolean sensor;
 
+    // Which collision categories the shape belongs to, which categories it
+    // can collide with, and its collision group, checked by the physics
+    // engine before canCollideWith is consulted
+    private int collisionCategories = 0x0001;
+    private int collisionMask = 0xFFFF;
+    private int collisionGroup;
+
+    // The body's transform before the most recent physics step, used to
+    // interpolate the drawn position between steps.
+    private float previousX;
+    private float previousY;
+    private float previousAngle;
+    private long previousTransformStep = -1;
+
+    // Set while a move is waiting for the world to finish a step; the body
+    // definition then holds the shape's up-to-date position and angle
+    private volatile boolean transformPending;
+    private final Runnable pendingTransformTask = new Runnable() {
+        public void run()
+        {
+            applyTransform();
+        }
+    };
+
+    // The area that the shape covered the last time it was drawn, used to
+    // erase it when it changes.
+    private final RectF drawnBounds = new RectF();
+    private boolean hasDrawnBounds;
+
+    // The most recent drawing query that found this shape, used to report
+    // shapes with several fixtures only once; 0 if none has in its current
+    // field
+    private int drawCandidateStamp;
+
+    // The paint used to draw the shape, built on first use and discarded
+    // when a property that affects it changes
+    private volatile Paint paint;
+
 
     //~ Constructors ..........................................................
 
@@ -112,6 +151,8 @@ public abstract class Shape
             {
                 b2Body = field.getB2World().createBody(b2BodyDef);
                 createFixtures();
+                field.updateDrawingIndex(Shape.this);
+                field.getSpatialIndex().markDirty(Shape.this);
             }
         });
     }
@@ -127,10 +168,11 @@ public abstract class Shape
             public void run()
             {
                 b2BodyDef.angle = b2Body.getAngle();
-                b2BodyDef.position = b2Body.getPosition();
+                b2BodyDef.position.set(b2Body.getPosition());
 
                 field.getB2World().destroyBody(b2Body);
                 b2Body = null;
+                field.updateDrawingIndex(Shape.this);
             }
         });
     }
@@ -260,6 +302,48 @@ public abstract class Shape
         {
             b2Body.setActive(isActive);
         }
+
+        ShapeField field = getShapeField();
+
+        if (field != null)
+        {
+            field.updateDrawingIndex(this);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether the shape can be found by querying the
+     * world's broad-phase; that is, whether it has an active body with at
+     * least one fixture.
+     *
+     * @return true if the shape is in the broad-phase, otherwise false
+     */
+    /*package*/ boolean isInBroadPhase()
+    {
+        return b2Body != null && b2Body.isActive()
+                && b2Body.getFixtureList() != null;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Marks the shape as having been found by a drawing query.
+     *
+     * @param stamp a number that identifies the query
+     * @return true if this is the first time the query has found the shape,
+     *     or false if it was already found
+     */
+    /*package*/ boolean markDrawCandidate(int stamp)
+    {
+        if (drawCandidateStamp == stamp)
+        {
+            return false;
+        }
+
+        drawCandidateStamp = stamp;
+        return true;
     }
 
 
@@ -311,6 +395,103 @@ public abstract class Shape
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Gets the collision categories that this shape belongs to, as a set of
+     * bits.
+     *
+     * @return the shape's collision categories
+     * @see #setCollisionCategories(int)
+     */
+    public int getCollisionCategories()
+    {
+        return collisionCategories;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * <p>
+     * Sets the collision categories that this shape belongs to, as a set of
+     * bits (up to 16 of them). Two shapes can only collide if each one's
+     * categories share a bit with the other's collision mask. By default,
+     * every shape belongs to the first category (0x0001).
+     * </p><p>
+     * These checks are made by the physics engine itself, so they are much
+     * cheaper than {@link #canCollideWith(Shape)} when many shapes move
+     * through each other; for example, bullets can be kept from hitting each
+     * other by giving them a category that is left out of their own mask.
+     * </p>
+     *
+     * @param categories the shape's collision categories
+     */
+    public void setCollisionCategories(int categories)
+    {
+        collisionCategories = categories;
+        updateCollisionFilter();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the collision categories that this shape can collide with, as a
+     * set of bits.
+     *
+     * @return the shape's collision mask
+     * @see #setCollisionMask(int)
+     */
+    public int getCollisionMask()
+    {
+        return collisionMask;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sets the collision categories that this shape can collide with, as a
+     * set of bits. Two shapes can only collide if each one's categories
+     * share a bit with the other's collision mask. By default, shapes can
+     * collide with every category (0xFFFF).
+     *
+     * @param mask the shape's collision mask
+     */
+    public void setCollisionMask(int mask)
+    {
+        collisionMask = mask;
+        updateCollisionFilter();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the collision group that this shape belongs to.
+     *
+     * @return the shape's collision group
+     * @see #setCollisionGroup(int)
+     */
+    public int getCollisionGroup()
+    {
+        return collisionGroup;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sets the collision group that this shape belongs to, which overrides
+     * its categories and mask when it meets another shape in the same group.
+     * Shapes in the same positive group always collide, and shapes in the
+     * same negative group never collide. Group 0, the default, has no
+     * effect.
+     *
+     * @param group the shape's collision group
+     */
+    public void setCollisionGroup(int group)
+    {
+        collisionGroup = group;
+        updateCollisionFilter();
+    }
+
+
     // ----------------------------------------------------------
     /**
      * Gets the gravity scaling factory for this shape.
@@ -872,6 +1053,13 @@ public abstract class Shape
                 destroyFixtures();
                 createFixtures();
             }
+
+            ShapeField field = getShapeField();
+
+            if (field != null)
+            {
+                field.updateDrawingIndex(this);
+            }
         }
     }
 
@@ -887,7 +1075,7 @@ public abstract class Shape
     {
         Vec2 position;
 
-        if (b2Body == null)
+        if (b2Body == null || transformPending)
         {
             position = b2BodyDef.position;
         }
@@ -911,7 +1099,7 @@ public abstract class Shape
     {
         float angle;
 
-        if (b2Body == null)
+        if (b2Body == null || transformPending)
         {
             angle = b2BodyDef.angle;
         }
@@ -933,37 +1121,238 @@ public abstract class Shape
      * @param angle the rotation angle, in <strong>radians</strong> (note that
      *     this is different from the public interface, which uses degrees)
      */
-    protected void updateTransform(float x, float y, final float angle)
+    protected void updateTransform(float x, float y, float angle)
     {
-        final Vec2 position = new Vec2(x, y);
-
-        b2BodyDef.position = position;
+        b2BodyDef.position.set(x, y);
         b2BodyDef.angle = angle;
 
+        // An explicit move is a jump, not motion, so it should not be
+        // interpolated from wherever the body was before the last step.
+        previousTransformStep = -1;
+
+        if (shapeField != null)
+        {
+            shapeField.getSpatialIndex().markDirty(this);
+        }
+
         if (b2Body != null)
         {
             synchronized (b2Body.m_world)
             {
-                shapeField.runOnceUnlocked(new Runnable() {
-                    @Override
-                    public void run()
-                    {
-                        b2Body.setTransform(position, angle);
-
-                        // Dynamic shapes get their physics screwed up if you call
-                        // setTransform, so we recreate the body and all fixtures if
-                        // it's not static.
-                        if (b2BodyDef.type != BodyType.STATIC)
-                        {
-                            recreateBody();
-                        }
-                    }
-                });
+                // If the world is being stepped, the move is deferred until
+                // the step ends, and any further moves before then just
+                // update the body definition that the deferred move reads.
+                if (!transformPending)
+                {
+                    transformPending = true;
+                    shapeField.runOnceUnlocked(pendingTransformTask);
+                }
             }
         }
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Moves the shape's body to the position and angle in its body
+     * definition. The body is moved in place, so its fixtures, velocity, and
+     * joints are preserved; it is woken up so that the physics simulation
+     * responds to the new position.
+     */
+    private void applyTransform()
+    {
+        ShapeField field = shapeField;
+        Body body = b2Body;
+
+        if (field == null || body == null)
+        {
+            transformPending = false;
+            return;
+        }
+
+        synchronized (body.m_world)
+        {
+            transformPending = false;
+            body.setTransform(b2BodyDef.position, b2BodyDef.angle);
+
+            if (b2BodyDef.type != BodyType.STATIC)
+            {
+                body.setAwake(true);
+            }
+
+            field.getSpatialIndex().markDirty(this);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Records the current transform of the shape's body so that drawing can
+     * interpolate between it and the transform after the next physics step.
+     * Called by the {@link ShapeField} immediately before it steps the world.
+     *
+     * @param step the index of the physics step that is about to be taken
+     */
+    /*package*/ void savePreviousTransform(long step)
+    {
+        Vec2 position = b2Body.getPosition();
+        previousX = position.x;
+        previousY = position.y;
+        previousAngle = b2Body.getAngle();
+        previousTransformStep = step;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether the shape's transform was recorded
+     * immediately before the specified physics step, which means that it can
+     * be interpolated between its previous and current transforms.
+     *
+     * @param step the index of the most recent physics step
+     * @return true if the previous transform is valid for interpolation
+     */
+    /*package*/ boolean hasPreviousTransform(long step)
+    {
+        return previousTransformStep == step;
+    }
+
+
+    // ----------------------------------------------------------
+    /*package*/ float getPreviousX()
+    {
+        return previousX;
+    }
+
+
+    // ----------------------------------------------------------
+    /*package*/ float getPreviousY()
+    {
+        return previousY;
+    }
+
+
+    // ----------------------------------------------------------
+    /*package*/ float getPreviousAngle()
+    {
+        return previousAngle;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * <p>
+     * Computes the area, in the view's coordinate system, that the shape
+     * covers when it is drawn at its current position and rotation. The
+     * {@link ShapeView} uses this to repaint only the parts of the scene that
+     * have changed.
+     * </p><p>
+     * By default this is the shape's bounds, enlarged to cover every angle of
+     * rotation if the shape is rotated. Subclasses that draw outside their
+     * bounds (for example, with a thick outline) should override this method
+     * to enlarge the area accordingly.
+     * </p>
+     *
+     * @param result the rectangle that receives the area
+     * @return true if the area was computed, or false if the shape has no
+     *     bounds (and thus is not drawn)
+     */
+    protected boolean computeRepaintBounds(RectF result)
+    {
+        RectF bounds = getBounds();
+
+        if (bounds == null)
+        {
+            return false;
+        }
+
+        result.set(bounds);
+
+        Vec2 center;
+        float angle;
+
+        if (b2Body != null && !transformPending)
+        {
+            center = b2Body.getPosition();
+            angle = b2Body.getAngle();
+        }
+        else
+        {
+            center = b2BodyDef.position;
+            angle = b2BodyDef.angle;
+        }
+
+        if (angle != 0)
+        {
+            // The shape rotates around its centroid, so at any angle it stays
+            // inside the circle through its farthest corner.
+            float dx = Math.max(Math.abs(result.left - center.x),
+                    Math.abs(result.right - center.x));
+            float dy = Math.max(Math.abs(result.top - center.y),
+                    Math.abs(result.bottom - center.y));
+            float radius = (float) Math.sqrt(dx * dx + dy * dy);
+
+            result.set(center.x - radius, center.y - radius,
+                    center.x + radius, center.y + radius);
+        }
+
+        return true;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Records the area that the shape covers as it is being drawn. Called by
+     * the {@link ShapeView} each time it draws the shape.
+     */
+    /*package*/ void updateDrawnBounds()
+    {
+        synchronized (drawnBounds)
+        {
+            hasDrawnBounds = computeRepaintBounds(drawnBounds);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the area that the shape covered the last time it was drawn.
+     *
+     * @param result the rectangle that receives the area
+     * @return true if the shape has been drawn, otherwise false
+     */
+    /*package*/ boolean getDrawnBounds(RectF result)
+    {
+        synchronized (drawnBounds)
+        {
+            if (hasDrawnBounds)
+            {
+                result.set(drawnBounds);
+            }
+
+            return hasDrawnBounds;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Enlarges a rectangle to contain another one. Unlike
+     * {@link RectF#union(RectF)}, rectangles with zero width or height (such
+     * as the bounds of a horizontal line) are not ignored.
+     *
+     * @param dest the rectangle to enlarge
+     * @param other the rectangle to include
+     */
+    /*package*/ static void unionBounds(RectF dest, RectF other)
+    {
+        dest.left = Math.min(dest.left, other.left);
+        dest.top = Math.min(dest.top, other.top);
+        dest.right = Math.max(dest.right, other.right);
+        dest.bottom = Math.max(dest.bottom, other.bottom);
+    }
+
+
     // ----------------------------------------------------------
     /**
      * This method should only be called internally from within
@@ -984,11 +1373,49 @@ public abstract class Shape
         fd.shape = b2Shape;
         fd.isSensor = sensor;
         fd.userData = this;
+        fd.filter.categoryBits = collisionCategories;
+        fd.filter.maskBits = collisionMask;
+        fd.filter.groupIndex = collisionGroup;
 
         b2Body.createFixture(fd);
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Gives this shape's fixtures its current collision categories, mask, and
+     * group. Changing a fixture's filter touches the broad-phase, so this
+     * waits until the world is not in the middle of a step.
+     */
+    private void updateCollisionFilter()
+    {
+        ShapeField field = shapeField;
+
+        if (field == null)
+        {
+            return;
+        }
+
+        field.runOnceUnlocked(new Runnable() {
+            public void run()
+            {
+                if (b2Body != null)
+                {
+                    Filter filter = new Filter();
+                    filter.categoryBits = collisionCategories;
+                    filter.maskBits = collisionMask;
+                    filter.groupIndex = collisionGroup;
+
+                    for (Fixture fixture : new FixtureIterator(b2Body))
+                    {
+                        fixture.setFilterData(filter);
+                    }
+                }
+            }
+        });
+    }
+
+
     // ----------------------------------------------------------
     /**
      * Add another shape to the same view (or composite shape) containing this
@@ -1107,7 +1534,7 @@ public abstract class Shape
     {
         float rads;
 
-        if (b2Body != null)
+        if (b2Body != null && !transformPending)
         {
             rads = b2Body.getAngle();
         }
@@ -1363,7 +1790,7 @@ public abstract class Shape
      */
     public PointF getPosition()
     {
-        if (b2Body != null)
+        if (b2Body != null && !transformPending)
         {
             return Box2DUtils.vec2ToPointF(b2Body.getPosition());
         }
@@ -1374,6 +1801,58 @@ public abstract class Shape
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Gets the position to draw this shape at: the position recorded for it
+     * in the frame being drawn, or its current position if none was
+     * recorded. Subclasses that draw themselves around their position should
+     * call this from {@link #draw(Drawing)} instead of
+     * {@link #getPosition()}, since the shape may be moved by another thread
+     * while the frame is drawn.
+     *
+     * @param drawing the {@link Drawing} the shape is being drawn on
+     * @return the position to draw the shape at
+     */
+    protected PointF getDrawingPosition(Drawing drawing)
+    {
+        PointF recorded = drawing.getShapePosition();
+
+        if (recorded != null)
+        {
+            return new PointF(recorded.x, recorded.y);
+        }
+        else
+        {
+            return getPosition();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the bounds to draw this shape in: its bounds, moved to the
+     * position recorded for it in the frame being drawn, if there is one.
+     * Subclasses that draw themselves within their bounds should call this
+     * from {@link #draw(Drawing)} instead of {@link #getBounds()}.
+     *
+     * @param drawing the {@link Drawing} the shape is being drawn on
+     * @return the bounds to draw the shape in
+     */
+    protected RectF getDrawingBounds(Drawing drawing)
+    {
+        RectF bounds = getBounds();
+        PointF recorded = drawing.getShapePosition();
+
+        if (recorded != null)
+        {
+            PointF position = getPosition();
+            bounds.offset(recorded.x - position.x, recorded.y - position.y);
+        }
+
+        return bounds;
+    }
+
+
     // ----------------------------------------------------------
     /**
      * Sets the location of the centroid of the shape.
@@ -1545,6 +2024,7 @@ public abstract class Shape
      */
     public void setZIndex(int newZIndex)
     {
+        int oldZIndex = zIndex;
         zIndex = newZIndex;
 
         if (shapeField != null)
@@ -1555,6 +2035,16 @@ public abstract class Shape
         {
             rawSetZIndex(newZIndex);
         }
+
+        ShapeView view = getParentView();
+
+        if (view != null && oldZIndex != newZIndex)
+        {
+            // The shape may have moved out of a cached layer, and its place
+            // in the drawing order has changed.
+            view.invalidateCachedLayer(oldZIndex);
+            conditionallyRepaint();
+        }
     }
 
 
@@ -1620,6 +2110,14 @@ public abstract class Shape
     /*package*/ final void setShapeField(ShapeField newShapeField)
     {
         this.shapeField = newShapeField;
+
+        // Each field numbers its drawing queries separately, so a stamp
+        // left by the old field could match one of the new field's.
+        drawCandidateStamp = 0;
+
+        // Some paint attributes, such as text sizes, depend on the view that
+        // the shape is in.
+        invalidatePaint();
     }
 
 
@@ -1650,6 +2148,7 @@ public abstract class Shape
         }
 
         this.color = newColor;
+        invalidatePaint();
         conditionallyRepaint();
     }
 
@@ -1679,6 +2178,7 @@ public abstract class Shape
     public void setAlpha(int newAlpha)
     {
         this.alpha = newAlpha;
+        invalidatePaint();
         conditionallyRepaint();
     }
 
@@ -1771,21 +2271,68 @@ public abstract class Shape
     // ----------------------------------------------------------
     /**
      * Gets the {@code Paint} object that describes how this shape should be
-     * drawn. By default, the {@code Paint}'s style is set to {@code STROKE}
-     * and the color to the value returned by {@link #getColor()}. Subclasses
-     * can override this method to add their own attributes; they should call
-     * the superclass implementation and then add their own styles to the
-     * returned object.
+     * drawn. The same object is returned each time until a property that
+     * affects it changes, so callers should not modify it; subclasses that
+     * need additional attributes should override
+     * {@link #configurePaint(Paint)} instead.
      *
      * @return A Paint object describing how the shape should be drawn.
      */
     protected Paint getPaint()
     {
-        Paint paint = new Paint();
-        paint.setStyle(Paint.Style.STROKE);
-        paint.setColor(getColor().toRawColor());
-        paint.setAlpha(alpha);
-        return paint;
+        Paint result = paint;
+
+        if (result == null)
+        {
+            synchronized (this)
+            {
+                result = paint;
+
+                if (result == null)
+                {
+                    result = new Paint();
+                    configurePaint(result);
+                    paint = result;
+                }
+            }
+        }
+
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sets the attributes of the {@code Paint} returned by {@link #getPaint()}
+     * when it is rebuilt. By default, the {@code Paint}'s style is set to
+     * {@code STROKE} and the color to the value returned by
+     * {@link #getColor()}. Subclasses can override this method to add their
+     * own attributes; they should call the superclass implementation and then
+     * add their own styles to the {@code Paint}.
+     *
+     * @param newPaint the newly created {@code Paint} to configure
+     */
+    protected void configurePaint(Paint newPaint)
+    {
+        newPaint.setStyle(Paint.Style.STROKE);
+        newPaint.setColor(getColor().toRawColor());
+        newPaint.setAlpha(alpha);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Discards the {@code Paint} returned by {@link #getPaint()}, so that it
+     * will be rebuilt the next time it is needed. Subclasses must call this
+     * method whenever a property used by {@link #configurePaint(Paint)}
+     * changes.
+     */
+    protected void invalidatePaint()
+    {
+        synchronized (this)
+        {
+            paint = null;
+        }
     }
 
 
@@ -1797,19 +2344,57 @@ public abstract class Shape
      */
     protected void conditionallyRepaint()
     {
+        // Any change that needs a repaint may also have changed the shape's
+        // size or position.
+        ShapeField field = getShapeField();
+
+        if (field != null)
+        {
+            field.getSpatialIndex().markDirty(this);
+        }
+
         ShapeView view = getParentView();
 
         if (view != null)
         {
-            view.conditionallyRepaint();
+            view.invalidateCachedLayer(zIndex);
+
+            // Repaint where the shape was drawn before the change, along with
+            // where it will be drawn after it.
+            RectF dirty = new RectF();
+            RectF previous = new RectF();
+
+            if (computeRepaintBounds(dirty))
+            {
+                if (getDrawnBounds(previous))
+                {
+                    unionBounds(dirty, previous);
+                }
+            }
+            else if (!getDrawnBounds(dirty))
+            {
+                return;
+            }
+
+            view.conditionallyRepaint(dirty);
         }
     }
 
 
     // ----------------------------------------------------------
     /**
+     * <p>
      * Gets a value indicating whether this shape can collide with the
-     * specified other shape, assuming both shapes are active.
+     * specified other shape, assuming both shapes are active. Two shapes
+     * collide if either of them says that they can.
+     * </p><p>
+     * This is only asked about shapes whose collision categories, masks, and
+     * groups already allow them to collide, and only if both of their classes
+     * override this method; filtering with
+     * {@link #setCollisionCategories(int)} and
+     * {@link #setCollisionMask(int)} is much cheaper, so use those where
+     * they are enough.
+     * </p>
      *
      * @param otherShape the other shape
      * @return true if the shapes can collide, or false if they cannot
@@ -16,28 +16,44 @@
 
 package sofia.graphics;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.jbox2d.callbacks.ContactImpulse;
 import org.jbox2d.callbacks.ContactListener;
+import org.jbox2d.callbacks.QueryCallback;
+import org.jbox2d.callbacks.RayCastCallback;
+import org.jbox2d.collision.AABB;
 import org.jbox2d.collision.Manifold;
 import org.jbox2d.common.Vec2;
 import org.jbox2d.dynamics.Body;
+import org.jbox2d.dynamics.BodyType;
+import org.jbox2d.dynamics.Fixture;
 import org.jbox2d.dynamics.World;
 import org.jbox2d.dynamics.contacts.Contact;
+import org.jbox2d.dynamics.contacts.ContactEdge;
 
 import sofia.graphics.internal.Box2DUtils;
+import sofia.graphics.internal.ShapeContactFilter;
+import sofia.graphics.internal.SpatialGrid;
 import sofia.internal.events.EventDispatcher;
 import sofia.internal.events.ReversibleEventDispatcher;
 import android.graphics.PointF;
+import android.graphics.RectF;
 
 //-------------------------------------------------------------------------
 /**
@@ -59,12 +75,86 @@ public class ShapeField extends ShapeSet<Shape>
     private IdentityHashMap<Shape, Long> shapeAddTimes;
     private World b2World;
     private int nonstaticShapeCount;
-
-    private HashMap<Shape, Boolean> sleepRecipients;
+    private long stepCount;
+    private int movingShapeCount;
+
+    // Shapes that cannot be found through the world's broad-phase (because
+    // they have no active body with fixtures), which the view must consider
+    // separately when culling what to draw
+    private Set<Shape> unindexedShapes;
+    private int drawQueryStamp;
+    private DrawQueryCallback drawQueryCallback;
+    private AABB drawQueryBox;
+
+    // Answers proximity queries without scanning every shape
+    private SpatialGrid spatialIndex;
+    private List<Shape> movedShapes;
+
+    // Shapes with onSleep or onWake handlers, mapped to whether they were
+    // asleep when they were last notified
+    private IdentityHashMap<Shape, Boolean> sleepRecipients;
+
+    // The bodies that were awake when the current step started, which are
+    // the only ones that can fall asleep during it or wake others; and
+    // scratch space for finding the bodies that they woke
+    private List<Body> awakeAtStepStart;
+    private List<Body> wakeQueue;
+    private Set<Body> wakeVisited;
+    private List<Shape> fellAsleep;
+    private List<Shape> wokeUp;
+
+    // Whether each class of shape has onSleep or onWake handlers
+    private static final Map<Class<?>, Boolean> sleepHandlerClasses =
+            new HashMap<Class<?>, Boolean>();
     private EventDispatcher onSleep = new EventDispatcher("onSleep");
     private EventDispatcher onWake = new EventDispatcher("onWake");
 
-    private List<Runnable> deferredOperations;
+    // Operations that must wait until the world is not in the middle of a
+    // step, and operations posted by other threads to run before the next
+    // step; both can be added to from any thread without locking
+    private ConcurrentLinkedQueue<Runnable> deferredOperations;
+    private ConcurrentLinkedQueue<Runnable> postedOperations;
+
+    // While a batch is running, the areas that need to be repainted are
+    // collected here and repainted once when the batch ends
+    private int batchDepth;
+    private RectF batchDirty;
+
+    // Contacts that began or ended during the current step, which are
+    // dispatched to their handlers once the step is over; and, for each
+    // pair of shape classes, the handlers that their collisions are sent
+    // to (looked up with the probe key, so the lookup does not allocate)
+    private ContactBuffer bufferedContacts;
+    private ContactBuffer dispatchingContacts;
+    private Map<ContactPairKey, CollisionHandlers> contactPairHandlers;
+    private ContactPairKey contactPairProbe;
+
+    // The methods that each class has with each collision handler's name
+    private static final Map<Class<?>, Map<String, List<Method>>>
+        collisionHandlerMethods =
+            new HashMap<Class<?>, Map<String, List<Method>>>();
+
+    // Stands for a handler that the field cannot call directly, which the
+    // event dispatcher is left to find and call instead
+    private static final HandlerMethod DISPATCHED_HANDLER =
+        new HandlerMethod(null, false);
+
+    // Stands for a pair of shape classes whose collisions nothing handles
+    private static final CollisionHandlers NO_HANDLERS =
+        new CollisionHandlers(null, null);
+
+    // Ray cast modes
+    private static final int RAY_CAST_CLOSEST = 0;
+    private static final int RAY_CAST_ANY = 1;
+    private static final int RAY_CAST_ALL = 2;
+
+    private static final Comparator<RayCastHit> RAY_CAST_ORDER =
+        new Comparator<RayCastHit>() {
+            public int compare(RayCastHit hit1, RayCastHit hit2)
+            {
+                return Float.compare(hit1.getFraction(), hit2.getFraction());
+            }
+        };
 
 
     //~ Events ................................................................
@@ -90,12 +180,33 @@ public class ShapeField extends ShapeSet<Shape>
         view = null;
         shapeAddTimes = new IdentityHashMap<Shape, Long>();
 
-        deferredOperations = new ArrayList<Runnable>();
+        deferredOperations = new ConcurrentLinkedQueue<Runnable>();
+        postedOperations = new ConcurrentLinkedQueue<Runnable>();
 
         b2World = new World(new Vec2(0, 0));
         b2World.setContactListener(new ContactHandlers());
-
-        sleepRecipients = new HashMap<Shape, Boolean>();
+        b2World.setContactFilter(new ShapeContactFilter());
+        bufferedContacts = new ContactBuffer();
+        dispatchingContacts = new ContactBuffer();
+        contactPairHandlers =
+            new HashMap<ContactPairKey, CollisionHandlers>();
+        contactPairProbe = new ContactPairKey(null, null, false);
+
+        sleepRecipients = new IdentityHashMap<Shape, Boolean>();
+        awakeAtStepStart = new ArrayList<Body>();
+        wakeQueue = new ArrayList<Body>();
+        wakeVisited = Collections.newSetFromMap(
+                new IdentityHashMap<Body, Boolean>());
+        fellAsleep = new ArrayList<Shape>();
+        wokeUp = new ArrayList<Shape>();
+
+        unindexedShapes = Collections.newSetFromMap(
+                new IdentityHashMap<Shape, Boolean>());
+        drawQueryCallback = new DrawQueryCallback();
+        drawQueryBox = new AABB();
+
+        spatialIndex = new SpatialGrid();
+        movedShapes = new ArrayList<Shape>();
     }
 
 
@@ -143,6 +254,238 @@ public class ShapeField extends ShapeSet<Shape>
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Casts a ray from one point to another and finds the first shape that it
+     * hits. Unlike {@link ShapeFilter#throughLine(PointF, PointF)}, this only
+     * examines the shapes near the ray itself, not every shape in the
+     * rectangle spanned by its end points.
+     *
+     * @param start the point where the ray starts
+     * @param end the point where the ray ends
+     * @return the hit closest to the start of the ray, or null if the ray
+     *     does not hit any shapes
+     */
+    public RayCastHit rayCastClosest(PointF start, PointF end)
+    {
+        RayCastCollector collector = new RayCastCollector(RAY_CAST_CLOSEST);
+
+        synchronized (b2World)
+        {
+            collector.cast(start, end);
+        }
+
+        return collector.closest;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Casts a ray from one point to another and finds the first shape that it
+     * hits.
+     *
+     * @param x1 the x-coordinate of the point where the ray starts
+     * @param y1 the y-coordinate of the point where the ray starts
+     * @param x2 the x-coordinate of the point where the ray ends
+     * @param y2 the y-coordinate of the point where the ray ends
+     * @return the hit closest to the start of the ray, or null if the ray
+     *     does not hit any shapes
+     */
+    public RayCastHit rayCastClosest(float x1, float y1, float x2, float y2)
+    {
+        return rayCastClosest(new PointF(x1, y1), new PointF(x2, y2));
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Casts a ray from one point to another and stops as soon as it hits any
+     * shape. This is the fastest way to test for line of sight, since the
+     * hit that is returned is not necessarily the one closest to the start
+     * of the ray.
+     *
+     * @param start the point where the ray starts
+     * @param end the point where the ray ends
+     * @return a hit along the ray, or null if the ray does not hit any shapes
+     */
+    public RayCastHit rayCastAny(PointF start, PointF end)
+    {
+        RayCastCollector collector = new RayCastCollector(RAY_CAST_ANY);
+
+        synchronized (b2World)
+        {
+            collector.cast(start, end);
+        }
+
+        return collector.closest;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Casts a ray from one point to another and stops as soon as it hits any
+     * shape.
+     *
+     * @param x1 the x-coordinate of the point where the ray starts
+     * @param y1 the y-coordinate of the point where the ray starts
+     * @param x2 the x-coordinate of the point where the ray ends
+     * @param y2 the y-coordinate of the point where the ray ends
+     * @return a hit along the ray, or null if the ray does not hit any shapes
+     */
+    public RayCastHit rayCastAny(float x1, float y1, float x2, float y2)
+    {
+        return rayCastAny(new PointF(x1, y1), new PointF(x2, y2));
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Casts a ray from one point to another and finds every shape that it
+     * hits. A shape with several parts is only reported once, at the point
+     * where the ray first hits it.
+     *
+     * @param start the point where the ray starts
+     * @param end the point where the ray ends
+     * @return the hits along the ray, sorted from the start of the ray to its
+     *     end
+     */
+    public List<RayCastHit> rayCastAll(PointF start, PointF end)
+    {
+        return rayCastAll(start, end, Integer.MAX_VALUE);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Casts a ray from one point to another and finds the shapes closest to
+     * its start that it hits. A shape with several parts is only reported
+     * once, at the point where the ray first hits it.
+     *
+     * @param start the point where the ray starts
+     * @param end the point where the ray ends
+     * @param maxHits the maximum number of hits to return
+     * @return at most {@code maxHits} hits along the ray, sorted from the
+     *     start of the ray to its end
+     */
+    public List<RayCastHit> rayCastAll(PointF start, PointF end, int maxHits)
+    {
+        checkMaxHits(maxHits);
+
+        RayCastCollector collector = new RayCastCollector(RAY_CAST_ALL);
+
+        synchronized (b2World)
+        {
+            collector.cast(start, end);
+        }
+
+        return nearestDistinctHits(collector.hits, maxHits);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Casts a batch of rays and finds the first shape that each of them hits.
+     * This is equivalent to calling {@link #rayCastClosest(PointF, PointF)}
+     * for each pair of points, but only locks the physical world once.
+     *
+     * @param starts the points where the rays start
+     * @param ends the points where the rays end; must be the same length as
+     *     {@code starts}
+     * @return an array containing, for each ray, the hit closest to its
+     *     start, or null if that ray does not hit any shapes
+     */
+    public RayCastHit[] rayCastClosest(PointF[] starts, PointF[] ends)
+    {
+        return rayCastBatch(RAY_CAST_CLOSEST, starts, ends, 0, null);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Casts a batch of rays and, for each of them, stops as soon as it hits
+     * any shape. This is equivalent to calling
+     * {@link #rayCastAny(PointF, PointF)} for each pair of points, but only
+     * locks the physical world once.
+     *
+     * @param starts the points where the rays start
+     * @param ends the points where the rays end; must be the same length as
+     *     {@code starts}
+     * @return an array containing, for each ray, a hit along it, or null if
+     *     that ray does not hit any shapes
+     */
+    public RayCastHit[] rayCastAny(PointF[] starts, PointF[] ends)
+    {
+        return rayCastBatch(RAY_CAST_ANY, starts, ends, 0, null);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Casts a batch of rays and finds the shapes closest to the start of each
+     * one that it hits. This is equivalent to calling
+     * {@link #rayCastAll(PointF, PointF, int)} for each pair of points, but
+     * only locks the physical world once.
+     *
+     * @param starts the points where the rays start
+     * @param ends the points where the rays end; must be the same length as
+     *     {@code starts}
+     * @param maxHits the maximum number of hits to return for each ray
+     * @return a list containing, for each ray, at most {@code maxHits} hits
+     *     along it, sorted from the start of the ray to its end
+     */
+    public List<List<RayCastHit>> rayCastAll(
+            PointF[] starts, PointF[] ends, int maxHits)
+    {
+        checkMaxHits(maxHits);
+
+        List<List<RayCastHit>> result =
+                new ArrayList<List<RayCastHit>>(starts.length);
+        rayCastBatch(RAY_CAST_ALL, starts, ends, maxHits, result);
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * <p>
+     * Arranges for an operation to be run on the physics thread, with the
+     * physical world locked, just before the next step of the simulation.
+     * Unlike calling methods of this field directly, which wait for the
+     * current frame to be recorded or the current step to finish, this
+     * method returns immediately, so it is a good way for game logic or
+     * timers on other threads to change the field without stalling:
+     * </p>
+     * <pre>
+     *     field.post(new Runnable() {
+     *         public void run()
+     *         {
+     *             field.add(new Coin(x, y));
+     *         }
+     *     });
+     * </pre>
+     * <p>
+     * Posted operations run in the order they were posted. If the field is
+     * not being simulated (because it is not in a view, or its view's physics
+     * thread is not running), they are run right away instead, and any that
+     * are still waiting when the simulation stops are run then.
+     * </p>
+     *
+     * @param operation the operation to run
+     */
+    public void post(Runnable operation)
+    {
+        postedOperations.add(operation);
+
+        if (view == null || !view.isSimulationRunning())
+        {
+            synchronized (b2World)
+            {
+                runPostedOperations();
+            }
+        }
+    }
+
+
     // ----------------------------------------------------------
     @Override
     public boolean add(Shape shape)
@@ -173,19 +516,99 @@ public class ShapeField extends ShapeSet<Shape>
 
 
     // ----------------------------------------------------------
+    /**
+     * Adds all of the shapes in a collection to this field at once. The
+     * shapes' bodies are created and the view is repainted in a single pass,
+     * which is much faster than adding the shapes one at a time.
+     *
+     * @param collection the shapes to add
+     * @return true if any shapes were added, or false if they were all
+     *     already in the field
+     */
     @Override
     public boolean addAll(Collection<? extends Shape> collection)
     {
         synchronized (b2World)
         {
-            boolean result = false;
+            List<Shape> added = new ArrayList<Shape>(collection.size());
 
             for (Shape shape : collection)
             {
-                result |= add(shape);
+                if (!shapeAddTimes.containsKey(shape))
+                {
+                    // As in add(), the add-time must be known before the
+                    // shape goes into the tree set.
+                    shapeAddTimes.put(shape, SHAPE_ADD_COUNTER++);
+                    shape.setShapeField(this);
+                    added.add(shape);
+                }
             }
 
-            return result;
+            if (added.isEmpty())
+            {
+                return false;
+            }
+
+            rawSet().addAll(added);
+            handleShapesAdded(added);
+
+            return true;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * <p>
+     * Runs a group of changes to this field as a single batch. The physics
+     * simulation does not advance while the batch runs, and the view is
+     * repainted once when it ends, covering everything that was added or
+     * removed, instead of once for each shape. This is useful when loading
+     * a level or rebuilding a large part of a scene:
+     * </p>
+     * <pre>
+     *     field.batch(new Runnable() {
+     *         public void run()
+     *         {
+     *             for (Tile tile : level.getTiles())
+     *             {
+     *                 field.add(tile.createShape());
+     *             }
+     *         }
+     *     });
+     * </pre>
+     * <p>
+     * Batches can be nested; the repaint happens when the outermost batch
+     * ends.
+     * </p>
+     *
+     * @param operations the changes to make
+     */
+    public void batch(Runnable operations)
+    {
+        synchronized (b2World)
+        {
+            batchDepth++;
+
+            try
+            {
+                operations.run();
+            }
+            finally
+            {
+                batchDepth--;
+
+                if (batchDepth == 0 && batchDirty != null)
+                {
+                    RectF dirty = batchDirty;
+                    batchDirty = null;
+
+                    if (view != null)
+                    {
+                        view.conditionallyRepaint(dirty);
+                    }
+                }
+            }
         }
     }
 
@@ -300,32 +723,7 @@ public class ShapeField extends ShapeSet<Shape>
     @Override
     public boolean removeAll(Collection<?> collection)
     {
-        synchronized (b2World)
-        {
-            boolean modified = false;
-
-            Iterator<Shape> it = iterator();
-            TreeSet<Shape> removedShapes =
-                    new TreeSet<Shape>(getDrawingOrder());
-            while (it.hasNext())
-            {
-                Shape shape = it.next();
-
-                if (collection.contains(shape))
-                {
-                    removedShapes.add(shape);
-                    it.remove();
-                    modified = true;
-                }
-            }
-
-            if (modified)
-            {
-                handleShapesRemoved(removedShapes);
-            }
-
-            return modified;
-        }
+        return removeMatching(collection, true);
     }
 
 
@@ -333,32 +731,7 @@ public class ShapeField extends ShapeSet<Shape>
     @Override
     public boolean retainAll(Collection<?> collection)
     {
-        synchronized (b2World)
-        {
-            boolean modified = false;
-
-            Iterator<Shape> it = iterator();
-            TreeSet<Shape> removedShapes =
-                    new TreeSet<Shape>(getDrawingOrder());
-            while (it.hasNext())
-            {
-                Shape shape = it.next();
-
-                if (!collection.contains(shape))
-                {
-                    removedShapes.add(shape);
-                    it.remove();
-                    modified = true;
-                }
-            }
-
-            if (modified)
-            {
-                handleShapesRemoved(removedShapes);
-            }
-
-            return modified;
-        }
+        return removeMatching(collection, false);
     }
 
 
@@ -496,7 +869,14 @@ public class ShapeField extends ShapeSet<Shape>
     // ----------------------------------------------------------
     /*package*/ final void setView(ShapeView newView)
     {
-        view = newView;
+        synchronized (b2World)
+        {
+            view = newView;
+
+            // The view and its context are among the handlers that were
+            // looked for, so the answers no longer apply.
+            contactPairHandlers.clear();
+        }
     }
 
 
@@ -517,100 +897,888 @@ public class ShapeField extends ShapeSet<Shape>
 
 
     // ----------------------------------------------------------
-    /*package*/ final void notifySleepRecipients()
+    /**
+     * Records the transform of every moving body in the world so that the
+     * view can interpolate between it and the transform computed by the step
+     * that is about to be taken. Must be called with the world locked,
+     * immediately before {@code World.step}.
+     */
+    /*package*/ final void savePreviousTransforms()
     {
-        for (Map.Entry<Shape, Boolean> entry : sleepRecipients.entrySet())
-        {
-            Shape shape = entry.getKey();
-            Body b2Body = shape.getB2Body();
-            boolean previouslyAsleep = entry.getValue();
+        stepCount++;
+        int moving = 0;
+        boolean trackSleep = !sleepRecipients.isEmpty();
 
-            if (b2Body != null)
+        for (Body body = b2World.getBodyList();
+                body != null; body = body.getNext())
+        {
+            if (body.getType() != BodyType.STATIC && body.isAwake())
             {
-                boolean nowAsleep = !b2Body.isAwake();
-
-                if (previouslyAsleep != nowAsleep)
+                if (trackSleep)
                 {
-                    if (nowAsleep)
-                    {
-                        onSleep.dispatch(shape);
-                    }
-                    else
-                    {
-                        onWake.dispatch(shape);
-                    }
+                    awakeAtStepStart.add(body);
+                }
+
+                Shape shape = (Shape) body.getUserData();
 
-                    entry.setValue(nowAsleep);
+                if (shape != null)
+                {
+                    shape.savePreviousTransform(stepCount);
+                    movedShapes.add(shape);
+                    moving++;
                 }
             }
         }
+
+        movingShapeCount = moving;
+
+        // The step is about to move these shapes, so their entries in the
+        // spatial index will need to be refreshed before the next query.
+        spatialIndex.markDirty(movedShapes);
+        movedShapes.clear();
     }
 
 
     // ----------------------------------------------------------
-    /*package*/ boolean hasNonstaticShapes()
+    /**
+     * Gets the size of the cells in the grid used to find shapes near a
+     * location, as with {@link ShapeView#getShapesInRange}.
+     *
+     * @return the width and height of each cell, in the view's coordinate
+     *     system
+     */
+    public float getSpatialIndexCellSize()
     {
-        return nonstaticShapeCount > 0;
+        return spatialIndex.getCellSize();
     }
 
 
     // ----------------------------------------------------------
-    private void registerSleepRecipient(Shape shape)
+    /**
+     * Sets the size of the cells in the grid used to find shapes near a
+     * location, as with {@link ShapeView#getShapesInRange}. Queries are
+     * fastest when cells are about as large as the typical search distance.
+     * By default (or if the size is set to 0), the size is chosen
+     * automatically based on the sizes of the shapes in the field.
+     *
+     * @param size the width and height of each cell, in the view's coordinate
+     *     system, or 0 to choose automatically
+     */
+    public void setSpatialIndexCellSize(float size)
     {
-        try
-        {
-            if (shape.getClass().getMethod("onSleep") != null
-                    || shape.getClass().getMethod("onWake") != null)
-            {
-                sleepRecipients.put(shape, false);
-            }
-        }
-        catch (NoSuchMethodException e)
-        {
-            // Do nothing.
-        }
+        spatialIndex.setCellSize(size);
     }
 
 
     // ----------------------------------------------------------
-    private void handleShapesAdded(Iterable<? extends Shape> addedShapes)
+    /**
+     * Gets the spatial index over the shapes in this field.
+     *
+     * @return the spatial index
+     */
+    /*package*/ SpatialGrid getSpatialIndex()
     {
-        for (Shape shape : addedShapes)
-        {
-            if (shape.getShapeMotion() != ShapeMotion.STATIC)
-            {
-                nonstaticShapeCount++;
-            }
+        return spatialIndex;
+    }
 
-            shape.createB2Body(this);
-            registerSleepRecipient(shape);
-        }
 
-        if (view != null)
-        {
-            view.conditionallyRepaint();
-        }
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether any shapes were moving (that is, had
+     * awake, non-static bodies) during the most recent physics step. When
+     * none were, the view only needs to redraw the parts of the scene that
+     * have been explicitly changed.
+     *
+     * @return true if any shapes were moving during the last physics step
+     */
+    /*package*/ final boolean hasMovingShapes()
+    {
+        return movingShapeCount > 0;
     }
 
 
     // ----------------------------------------------------------
-    private void handleShapesRemoved(Iterable<? extends Shape> removedShapes)
+    /**
+     * Gets the number of physics steps that have been taken in this field.
+     *
+     * @return the index of the most recent physics step
+     */
+    /*package*/ final long getStepCount()
     {
-        for (Shape shape : removedShapes)
-        {
-            sleepRecipients.remove(shape);
-            shape.destroyB2Body(this);
-            shape.setShapeField(null);
+        return stepCount;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Updates whether the specified shape can be found through the world's
+     * broad-phase when the view culls the shapes that it draws. Called
+     * whenever a shape's body or fixtures are created or destroyed, or its
+     * body is activated or deactivated.
+     *
+     * @param shape the shape whose body has changed
+     */
+    /*package*/ void updateDrawingIndex(Shape shape)
+    {
+        synchronized (b2World)
+        {
+            if (shape.getShapeField() != this)
+            {
+                return;
+            }
+
+            if (shape.isInBroadPhase())
+            {
+                unindexedShapes.remove(shape);
+            }
+            else
+            {
+                unindexedShapes.add(shape);
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Collects the shapes that might need to be drawn in the specified area,
+     * in drawing order. Shapes with fixtures are found by querying the
+     * world's broad-phase, so the cost depends on how many shapes are near
+     * the area rather than on how many shapes are in the field; any shapes
+     * without fixtures are always included. The caller is responsible for
+     * testing the results more precisely, and must hold the lock on the
+     * world.
+     *
+     * @param area the area, in the view's coordinate system
+     * @param result the list that receives the shapes; it is cleared first
+     */
+    /*package*/ void collectShapesToDraw(RectF area, List<Shape> result)
+    {
+        result.clear();
+        drawQueryStamp++;
+
+        drawQueryBox.lowerBound.set(area.left, area.top);
+        drawQueryBox.upperBound.set(area.right, area.bottom);
+
+        drawQueryCallback.result = result;
+        b2World.queryAABB(drawQueryCallback, drawQueryBox);
+        drawQueryCallback.result = null;
+
+        for (Shape shape : unindexedShapes)
+        {
+            if (shape.markDrawCandidate(drawQueryStamp))
+            {
+                result.add(shape);
+            }
+        }
+
+        Collections.sort(result, getDrawingOrder());
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * <p>
+     * Sends {@code onSleep} and {@code onWake} to the shapes whose bodies
+     * fell asleep or woke up during the most recent step. Called after each
+     * step, on the physics thread.
+     * </p><p>
+     * Rather than checking every shape that has handlers, this only looks at
+     * the bodies that were awake when the step started (since only they can
+     * fall asleep), and the bodies they touch (since the step wakes bodies
+     * that touch awake ones, and the bodies that touch those, and so on).
+     * Bodies woken between steps, by being moved or pushed, were awake when
+     * the step started, so they are found too. The work done is therefore
+     * proportional to the number of awake bodies, not the number of shapes
+     * with handlers, and is nothing at all when everything is at rest.
+     * </p>
+     */
+    /*package*/ final void notifySleepRecipients()
+    {
+        synchronized (b2World)
+        {
+            for (Body body : awakeAtStepStart)
+            {
+                if (wakeVisited.add(body))
+                {
+                    wakeQueue.add(body);
+                }
+            }
+
+            awakeAtStepStart.clear();
+
+            for (int i = 0; i < wakeQueue.size(); i++)
+            {
+                Body body = wakeQueue.get(i);
+                boolean nowAsleep = !body.isAwake();
+
+                Shape shape = (Shape) body.getUserData();
+                Boolean previouslyAsleep =
+                        (shape != null) ? sleepRecipients.get(shape) : null;
+
+                if (previouslyAsleep != null
+                        && previouslyAsleep != nowAsleep)
+                {
+                    sleepRecipients.put(shape, nowAsleep);
+                    (nowAsleep ? fellAsleep : wokeUp).add(shape);
+                }
+
+                if (!nowAsleep)
+                {
+                    for (ContactEdge edge = body.getContactList();
+                            edge != null; edge = edge.next)
+                    {
+                        Body other = edge.other;
+
+                        if (other.getType() != BodyType.STATIC
+                                && other.isAwake() && wakeVisited.add(other))
+                        {
+                            wakeQueue.add(other);
+                        }
+                    }
+                }
+            }
+
+            wakeQueue.clear();
+            wakeVisited.clear();
+        }
+
+        // The handlers are called without the world locked, as before.
+        for (int i = 0; i < wokeUp.size(); i++)
+        {
+            onWake.dispatch(wokeUp.get(i));
+        }
+
+        for (int i = 0; i < fellAsleep.size(); i++)
+        {
+            onSleep.dispatch(fellAsleep.get(i));
+        }
+
+        wokeUp.clear();
+        fellAsleep.clear();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Called by the view after each step to call the collision handlers for
+     * the contacts that began or ended during it. The handlers are called
+     * without the world locked, so they can add, remove, and move shapes
+     * directly instead of having those changes deferred.
+     */
+    /*package*/ final void dispatchBufferedContacts()
+    {
+        ContactBuffer contacts;
+
+        synchronized (b2World)
+        {
+            if (bufferedContacts.count == 0)
+            {
+                return;
+            }
+
+            contacts = bufferedContacts;
+            bufferedContacts = dispatchingContacts;
+            dispatchingContacts = contacts;
+        }
+
+        try
+        {
+            for (int i = 0; i < contacts.count; i++)
+            {
+                BufferedContact contact = contacts.records[i];
+                dispatchContact(contact.shape, contact.other,
+                        contact.handlers);
+            }
+        }
+        finally
+        {
+            contacts.clear();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /*package*/ boolean hasNonstaticShapes()
+    {
+        return nonstaticShapeCount > 0;
+    }
+
+
+    // ----------------------------------------------------------
+    private void registerSleepRecipient(Shape shape)
+    {
+        if (hasSleepHandlers(shape.getClass()))
+        {
+            sleepRecipients.put(shape, false);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether a class of shape has an
+     * {@code onSleep} or {@code onWake} method. The answer is cached, so the
+     * class is only examined the first time one of its shapes is added.
+     *
+     * @param shapeClass the class of shape
+     * @return true if the class has either handler
+     */
+    private static boolean hasSleepHandlers(Class<?> shapeClass)
+    {
+        synchronized (sleepHandlerClasses)
+        {
+            Boolean result = sleepHandlerClasses.get(shapeClass);
+
+            if (result == null)
+            {
+                result = hasMethod(shapeClass, "onSleep")
+                        || hasMethod(shapeClass, "onWake");
+                sleepHandlerClasses.put(shapeClass, result);
+            }
+
+            return result;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private static boolean hasMethod(Class<?> cls, String name)
+    {
+        try
+        {
+            cls.getMethod(name);
+            return true;
+        }
+        catch (NoSuchMethodException e)
+        {
+            return false;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private void dispatchContact(Shape shape, Shape other,
+            CollisionHandlers handlers)
+    {
+        // TODO We may want to pass the contact info to the method as
+        // well...
+
+        boolean eventHandled =
+            // Handle event on shapes
+            dispatchWith(handlers.shapeWith, handlers.withDispatcher,
+                    shape, other)
+            || dispatchWith(handlers.otherWith, handlers.withDispatcher,
+                    other, shape)
+            // Handled event on field itself
+            || dispatchBetween(handlers.fieldBetween,
+                    handlers.betweenDispatcher, this, shape, other);
+
+        if (!eventHandled)
+        {
+            ShapeView currentView = view;
+
+            if (currentView != null)
+            {
+                // The view may have changed since the handlers were looked
+                // up, in which case the dispatcher finds its handler
+                HandlerMethod viewBetween =
+                    (currentView.getClass() == handlers.viewClass)
+                    ? handlers.viewBetween : DISPATCHED_HANDLER;
+                eventHandled = dispatchBetween(viewBetween,
+                        handlers.betweenDispatcher, currentView, shape, other);
+
+                // Handle event on screen
+                Object ctxt = currentView.getContext();
+                if (ctxt != null)
+                {
+                    HandlerMethod contextBetween =
+                        (ctxt.getClass() == handlers.contextClass)
+                        ? handlers.contextBetween : DISPATCHED_HANDLER;
+                    eventHandled = dispatchBetween(contextBetween,
+                            handlers.betweenDispatcher, ctxt, shape, other);
+                }
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private static boolean dispatchWith(HandlerMethod handler,
+            EventDispatcher dispatcher, Shape receiver, Shape other)
+    {
+        if (handler == null)
+        {
+            return false;
+        }
+        else if (handler == DISPATCHED_HANDLER)
+        {
+            return dispatcher.dispatch(receiver, other);
+        }
+        else
+        {
+            handler.invoke(receiver, other);
+            return true;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private static boolean dispatchBetween(HandlerMethod handler,
+            ReversibleEventDispatcher dispatcher, Object receiver,
+            Shape shape, Shape other)
+    {
+        if (handler == null)
+        {
+            return false;
+        }
+        else if (handler == DISPATCHED_HANDLER)
+        {
+            return dispatcher.dispatch(receiver, shape, other);
+        }
+        else
+        {
+            if (handler.reversed)
+            {
+                handler.invoke(receiver, other, shape);
+            }
+            else
+            {
+                handler.invoke(receiver, shape, other);
+            }
+
+            return true;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the handlers that a collision between shapes of two classes is
+     * sent to: either shape, the field, the view, or the view's context. The
+     * handlers are looked up once for each pair of classes, the first time
+     * two of their shapes touch. Must be called with the world locked.
+     *
+     * @param shapeClass the class of the first shape
+     * @param otherClass the class of the second shape
+     * @param ended true to look for the handlers for a collision ending,
+     *     false for one beginning
+     * @return the handlers, or {@code NO_HANDLERS} if nothing handles the
+     *     collision
+     */
+    private CollisionHandlers collisionHandlers(Class<?> shapeClass,
+            Class<?> otherClass, boolean ended)
+    {
+        contactPairProbe.set(shapeClass, otherClass, ended);
+        CollisionHandlers handlers = contactPairHandlers.get(contactPairProbe);
+
+        if (handlers == null)
+        {
+            handlers = findCollisionHandlers(shapeClass, otherClass, ended);
+            contactPairHandlers.put(
+                    new ContactPairKey(shapeClass, otherClass, ended),
+                    handlers);
+        }
+
+        return handlers;
+    }
+
+
+    // ----------------------------------------------------------
+    private CollisionHandlers findCollisionHandlers(Class<?> shapeClass,
+            Class<?> otherClass, boolean ended)
+    {
+        String with = ended ? "onCollisionEndedWith" : "onCollisionWith";
+        String between =
+            ended ? "onCollisionEndedBetween" : "onCollisionBetween";
+
+        CollisionHandlers handlers = ended
+            ? new CollisionHandlers(
+                    onCollisionEndedWith, onCollisionEndedBetween)
+            : new CollisionHandlers(onCollisionWith, onCollisionBetween);
+
+        handlers.shapeWith = findHandler(shapeClass, with, otherClass);
+        handlers.otherWith = findHandler(otherClass, with, shapeClass);
+        handlers.fieldBetween = findHandlerEitherWay(getClass(), between,
+                shapeClass, otherClass);
+
+        boolean found = handlers.shapeWith != null
+            || handlers.otherWith != null
+            || handlers.fieldBetween != null;
+
+        if (view != null)
+        {
+            handlers.viewClass = view.getClass();
+            handlers.viewBetween = findHandlerEitherWay(handlers.viewClass,
+                    between, shapeClass, otherClass);
+            found |= handlers.viewBetween != null;
+
+            Object ctxt = view.getContext();
+            if (ctxt != null)
+            {
+                handlers.contextClass = ctxt.getClass();
+                handlers.contextBetween = findHandlerEitherWay(
+                        handlers.contextClass, between,
+                        shapeClass, otherClass);
+                found |= handlers.contextBetween != null;
+            }
+        }
+
+        return found ? handlers : NO_HANDLERS;
+    }
+
+
+    // ----------------------------------------------------------
+    private static HandlerMethod findHandlerEitherWay(Class<?> receiverClass,
+            String name, Class<?> shapeClass, Class<?> otherClass)
+    {
+        HandlerMethod handler =
+            findHandler(receiverClass, name, shapeClass, otherClass);
+
+        if (handler == null)
+        {
+            handler = findHandler(receiverClass, name, otherClass, shapeClass);
+
+            if (handler != null && handler != DISPATCHED_HANDLER)
+            {
+                handler = new HandlerMethod(handler.method, true);
+            }
+        }
+
+        return handler;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Finds the method with the specified name in a class that accepts
+     * arguments of the specified classes. Only a single public method that
+     * takes exactly those arguments is called directly; if the class has
+     * several that could, or ones that take a different number of arguments
+     * that the dispatcher may be able to adapt the arguments to, finding and
+     * calling the right one is left to the dispatcher.
+     *
+     * @param receiverClass the class to look for the method in
+     * @param name the name of the method
+     * @param argClasses the classes of the arguments
+     * @return the method, {@code DISPATCHED_HANDLER} if the dispatcher must
+     *     call it, or null if the class cannot handle the event
+     */
+    private static HandlerMethod findHandler(Class<?> receiverClass,
+            String name, Class<?>... argClasses)
+    {
+        Method found = null;
+
+        for (Method method : collisionHandlerMethods(receiverClass, name))
+        {
+            Class<?>[] parameters = method.getParameterTypes();
+
+            if (parameters.length != argClasses.length)
+            {
+                return DISPATCHED_HANDLER;
+            }
+
+            boolean matches = true;
+
+            for (int i = 0; i < parameters.length && matches; i++)
+            {
+                matches = parameters[i].isAssignableFrom(argClasses[i]);
+            }
+
+            if (matches)
+            {
+                if (found != null)
+                {
+                    return DISPATCHED_HANDLER;
+                }
+
+                found = method;
+            }
+        }
+
+        if (found == null)
+        {
+            return null;
+        }
+        else if (!Modifier.isPublic(found.getModifiers()))
+        {
+            return DISPATCHED_HANDLER;
+        }
+
+        try
+        {
+            // The method is public, but its class may not be
+            found.setAccessible(true);
+        }
+        catch (SecurityException e)
+        {
+            return DISPATCHED_HANDLER;
+        }
+
+        return new HandlerMethod(found, false);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the methods with the specified name in a class and its
+     * superclasses. A method that overrides one in a superclass is only
+     * included once. The methods of each class are only examined once.
+     *
+     * @param cls the class
+     * @param name the name of the methods
+     * @return the methods with that name
+     */
+    private static List<Method> collisionHandlerMethods(
+            Class<?> cls, String name)
+    {
+        synchronized (collisionHandlerMethods)
+        {
+            Map<String, List<Method>> methods =
+                    collisionHandlerMethods.get(cls);
+
+            if (methods == null)
+            {
+                methods = new HashMap<String, List<Method>>();
+
+                for (Class<?> c = cls; c != null; c = c.getSuperclass())
+                {
+                    for (Method method : c.getDeclaredMethods())
+                    {
+                        String methodName = method.getName();
+
+                        if (methodName.startsWith("onCollision"))
+                        {
+                            List<Method> list = methods.get(methodName);
+
+                            if (list == null)
+                            {
+                                list = new ArrayList<Method>();
+                                methods.put(methodName, list);
+                            }
+
+                            if (!isOverridden(method, list))
+                            {
+                                list.add(method);
+                            }
+                        }
+                    }
+                }
+
+                collisionHandlerMethods.put(cls, methods);
+            }
+
+            List<Method> result = methods.get(name);
+            return (result != null)
+                ? result : Collections.<Method>emptyList();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private static boolean isOverridden(Method method,
+            List<Method> subclassMethods)
+    {
+        for (Method subclassMethod : subclassMethods)
+        {
+            if (Arrays.equals(subclassMethod.getParameterTypes(),
+                    method.getParameterTypes()))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    // ----------------------------------------------------------
+    private void handleShapesAdded(Iterable<? extends Shape> addedShapes)
+    {
+        for (Shape shape : addedShapes)
+        {
+            if (shape.getShapeMotion() != ShapeMotion.STATIC)
+            {
+                nonstaticShapeCount++;
+            }
+
+            shape.createB2Body(this);
+            updateDrawingIndex(shape);
+            spatialIndex.add(shape);
+            registerSleepRecipient(shape);
+        }
+
+        if (view != null)
+        {
+            for (Shape shape : addedShapes)
+            {
+                view.invalidateCachedLayer(shape.getZIndex());
+            }
+
+            // Only the areas covered by the new shapes need to be drawn.
+            RectF dirty = getRepaintBounds(addedShapes, false);
+
+            if (dirty != null)
+            {
+                repaintArea(dirty);
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private void handleShapesRemoved(Iterable<? extends Shape> removedShapes)
+    {
+        for (Shape shape : removedShapes)
+        {
+            sleepRecipients.remove(shape);
+            shape.destroyB2Body(this);
+            shape.setShapeField(null);
+            unindexedShapes.remove(shape);
+            spatialIndex.remove(shape);
 
             if (shape.getShapeMotion() != ShapeMotion.STATIC)
             {
-                nonstaticShapeCount--;
+                nonstaticShapeCount--;
+            }
+        }
+
+        if (view != null)
+        {
+            for (Shape shape : removedShapes)
+            {
+                view.invalidateCachedLayer(shape.getZIndex());
+            }
+
+            // Only the areas where the old shapes were drawn need to be
+            // erased.
+            RectF dirty = getRepaintBounds(removedShapes, true);
+
+            if (dirty != null)
+            {
+                repaintArea(dirty);
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Computes the smallest rectangle that covers the specified shapes.
+     * Shapes without bounds, which are never drawn, are ignored.
+     *
+     * @param shapes the shapes
+     * @param drawn true to use the areas where the shapes were last drawn, or
+     *     false to use the areas where they will be drawn next
+     * @return the rectangle, or null if none of the shapes covers any area
+     */
+    private static RectF getRepaintBounds(
+            Iterable<? extends Shape> shapes, boolean drawn)
+    {
+        RectF dirty = null;
+        RectF area = new RectF();
+
+        for (Shape shape : shapes)
+        {
+            boolean known = drawn
+                    ? shape.getDrawnBounds(area)
+                    : shape.computeRepaintBounds(area);
+
+            if (known)
+            {
+                if (dirty == null)
+                {
+                    dirty = new RectF(area);
+                }
+                else
+                {
+                    Shape.unionBounds(dirty, area);
+                }
+            }
+        }
+
+        return dirty;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Repaints an area of the view, or, if a batch is running, adds it to
+     * the area that will be repainted when the batch ends. Must be called
+     * with the world locked.
+     *
+     * @param dirty the area to repaint
+     */
+    private void repaintArea(RectF dirty)
+    {
+        if (batchDepth > 0)
+        {
+            if (batchDirty == null)
+            {
+                batchDirty = new RectF(dirty);
+            }
+            else
+            {
+                Shape.unionBounds(batchDirty, dirty);
+            }
+        }
+        else
+        {
+            view.conditionallyRepaint(dirty);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Removes the shapes that are, or are not, in a collection, in a single
+     * pass. Collections other than sets are copied into an identity set
+     * first, so that each shape can be looked up in constant time.
+     *
+     * @param collection the collection
+     * @param inCollection true to remove the shapes that are in the
+     *     collection, or false to remove those that are not
+     * @return true if any shapes were removed
+     */
+    private boolean removeMatching(Collection<?> collection,
+            boolean inCollection)
+    {
+        Collection<?> lookup = collection;
+
+        if (!(collection instanceof Set))
+        {
+            Set<Object> identities = Collections.newSetFromMap(
+                    new IdentityHashMap<Object, Boolean>());
+            identities.addAll(collection);
+            lookup = identities;
+        }
+
+        synchronized (b2World)
+        {
+            List<Shape> removedShapes = new ArrayList<Shape>();
+
+            // Iterate over the raw set, so that the shapes are not
+            // handled one at a time as they are removed.
+            Iterator<Shape> it = rawSet().iterator();
+            while (it.hasNext())
+            {
+                Shape shape = it.next();
+
+                if (lookup.contains(shape) == inCollection)
+                {
+                    removedShapes.add(shape);
+                    it.remove();
+                    shapeAddTimes.remove(shape);
+                }
+            }
+
+            if (removedShapes.isEmpty())
+            {
+                return false;
             }
-        }
 
-        if (view != null)
-        {
-            view.conditionallyRepaint();
+            handleShapesRemoved(removedShapes);
+            return true;
         }
     }
 
@@ -637,17 +1805,243 @@ public class ShapeField extends ShapeSet<Shape>
     // ----------------------------------------------------------
     /*package*/ void runDeferredOperations()
     {
-        for (Runnable runnable : deferredOperations)
+        Runnable runnable;
+
+        while ((runnable = deferredOperations.poll()) != null)
+        {
+            runnable.run();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Runs the operations that have been posted with
+     * {@link #post(Runnable)}. Must be called with the world locked.
+     */
+    /*package*/ void runPostedOperations()
+    {
+        Runnable runnable;
+
+        while ((runnable = postedOperations.poll()) != null)
         {
             runnable.run();
         }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Casts a batch of rays with the world locked only once.
+     *
+     * @param mode the ray cast mode
+     * @param starts the points where the rays start
+     * @param ends the points where the rays end
+     * @param maxHits the maximum number of hits to keep for each ray, in the
+     *     all-hits mode
+     * @param allHits the list that receives the hits along each ray, in the
+     *     all-hits mode; null otherwise
+     * @return the hit found for each ray, in the other modes
+     */
+    private RayCastHit[] rayCastBatch(int mode, PointF[] starts,
+            PointF[] ends, int maxHits, List<List<RayCastHit>> allHits)
+    {
+        if (starts.length != ends.length)
+        {
+            throw new IllegalArgumentException(
+                    "starts and ends must be the same length");
+        }
+
+        RayCastHit[] result = new RayCastHit[starts.length];
+        RayCastCollector collector = new RayCastCollector(mode);
+
+        synchronized (b2World)
+        {
+            for (int i = 0; i < starts.length; i++)
+            {
+                collector.cast(starts[i], ends[i]);
+
+                if (allHits != null)
+                {
+                    allHits.add(new ArrayList<RayCastHit>(collector.hits));
+                }
+                else
+                {
+                    result[i] = collector.closest;
+                }
+            }
+        }
+
+        // Sort the hits once the world is unlocked.
+        if (allHits != null)
+        {
+            for (int i = 0; i < allHits.size(); i++)
+            {
+                allHits.set(i, nearestDistinctHits(allHits.get(i), maxHits));
+            }
+        }
+
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sorts the hits along a ray from its start to its end, and keeps only
+     * the first hit on each shape.
+     *
+     * @param hits the hits, in the order the world reported them
+     * @param maxHits the maximum number of hits to keep
+     * @return at most {@code maxHits} hits, on distinct shapes
+     */
+    private static List<RayCastHit> nearestDistinctHits(
+            List<RayCastHit> hits, int maxHits)
+    {
+        Collections.sort(hits, RAY_CAST_ORDER);
+
+        Set<Shape> shapesHit = Collections.newSetFromMap(
+                new IdentityHashMap<Shape, Boolean>());
+        List<RayCastHit> result = new ArrayList<RayCastHit>();
+
+        for (int i = 0; i < hits.size() && result.size() < maxHits; i++)
+        {
+            RayCastHit hit = hits.get(i);
+
+            if (shapesHit.add(hit.getShape()))
+            {
+                result.add(hit);
+            }
+        }
 
-        deferredOperations.clear();
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    private static void checkMaxHits(int maxHits)
+    {
+        if (maxHits < 0)
+        {
+            throw new IllegalArgumentException(
+                    "maxHits must not be negative");
+        }
     }
 
 
     //~ Inner classes .........................................................
 
+    // ----------------------------------------------------------
+    /**
+     * Receives the fixtures hit by a ray from the physical world, keeping
+     * either the closest hit, the first hit reported, or all of them. The
+     * callback can be reused for several rays in a row.
+     */
+    private class RayCastCollector implements RayCastCallback
+    {
+        private final int mode;
+        private final Vec2 start = new Vec2();
+        private final Vec2 end = new Vec2();
+        private RayCastHit closest;
+        private List<RayCastHit> hits;
+
+
+        // ----------------------------------------------------------
+        public RayCastCollector(int mode)
+        {
+            this.mode = mode;
+
+            if (mode == RAY_CAST_ALL)
+            {
+                hits = new ArrayList<RayCastHit>();
+            }
+        }
+
+
+        // ----------------------------------------------------------
+        /**
+         * Casts a ray. The caller must hold the world's lock.
+         */
+        public void cast(PointF from, PointF to)
+        {
+            closest = null;
+
+            if (hits != null)
+            {
+                hits.clear();
+            }
+
+            Box2DUtils.pointFToVec2(from, start);
+            Box2DUtils.pointFToVec2(to, end);
+
+            // The world cannot cast a ray of zero length.
+            if (start.x != end.x || start.y != end.y)
+            {
+                b2World.raycast(this, start, end);
+            }
+        }
+
+
+        // ----------------------------------------------------------
+        public float reportFixture(Fixture fixture, Vec2 point, Vec2 normal,
+                float fraction)
+        {
+            Shape shape = (Shape) fixture.getBody().getUserData();
+
+            if (shape == null)
+            {
+                return -1;
+            }
+
+            // The world reuses the point and normal vectors, so copy them.
+            RayCastHit hit = new RayCastHit(shape,
+                    Box2DUtils.vec2ToPointF(point),
+                    Box2DUtils.vec2ToPointF(normal),
+                    fraction);
+
+            switch (mode)
+            {
+                case RAY_CAST_ANY:
+                    closest = hit;
+                    return 0;
+
+                case RAY_CAST_ALL:
+                    hits.add(hit);
+                    return 1;
+
+                default:
+                    closest = hit;
+                    return fraction;
+            }
+        }
+    }
+
+
+
+    // ----------------------------------------------------------
+    /**
+     * Collects the shapes that own the fixtures found by a broad-phase query,
+     * reporting each shape only once even if it has several fixtures.
+     */
+    private class DrawQueryCallback implements QueryCallback
+    {
+        private List<Shape> result;
+
+
+        // ----------------------------------------------------------
+        public boolean reportFixture(Fixture fixture)
+        {
+            Shape shape = (Shape) fixture.getBody().getUserData();
+
+            if (shape != null && shape.markDrawCandidate(drawQueryStamp))
+            {
+                result.add(shape);
+            }
+
+            return true;
+        }
+    }
+
+
     // ----------------------------------------------------------
     private class WrappingIterator implements Iterator<Shape>
     {
@@ -709,20 +2103,25 @@ public class ShapeField extends ShapeSet<Shape>
 
 
     // ----------------------------------------------------------
+    /**
+     * Records the contacts that begin and end during a step, so that their
+     * handlers can be called once the step is over instead of in the middle
+     * of it. Contacts between shapes whose classes have no handlers are not
+     * recorded at all.
+     */
     private class ContactHandlers implements ContactListener
     {
         // ------------------------------------------------------
         public void beginContact(Contact contact)
         {
-            handleContact(contact, onCollisionBetween, onCollisionWith);
+            handleContact(contact, false);
         }
 
 
         // ------------------------------------------------------
         public void endContact(Contact contact)
         {
-            handleContact(contact,
-                    onCollisionEndedBetween, onCollisionEndedWith);
+            handleContact(contact, true);
         }
 
 
@@ -739,43 +2138,252 @@ public class ShapeField extends ShapeSet<Shape>
 
 
         // ----------------------------------------------------------
-        private void handleContact(Contact contact,
-                ReversibleEventDispatcher betweenDispatcher,
-                EventDispatcher withDispatcher)
+        private void handleContact(Contact contact, boolean ended)
         {
-            // TODO We may want to pass the contact info to the method as
-            // well...
-
             Shape shape = (Shape) contact.m_fixtureA.m_userData;
             Shape other = (Shape) contact.m_fixtureB.m_userData;
 
             // Necessary sanity check?
-            if (shape != null && other != null)
+            if (shape == null || other == null)
             {
-                boolean eventHandled =
-                    // Handle event on shapes
-                    withDispatcher.dispatch(shape, other)
-                    || withDispatcher.dispatch(other, shape)
-                    // Handled event on field itself
-                    || betweenDispatcher.dispatch(ShapeField.this, shape, other);
+                return;
+            }
 
-                if (!eventHandled)
-                {
-                    if (view != null)
-                    {
-                        eventHandled = betweenDispatcher
-                                .dispatch(view, shape, other);
+            CollisionHandlers handlers = collisionHandlers(
+                    shape.getClass(), other.getClass(), ended);
 
-                        // Handle event on screen
-                        Object ctxt = view.getContext();
-                        if (ctxt != null)
-                        {
-                            eventHandled = betweenDispatcher
-                                .dispatch(ctxt, shape, other);
-                        }
-                    }
+            if (handlers == NO_HANDLERS)
+            {
+                return;
+            }
+
+            if (b2World.isLocked())
+            {
+                bufferedContacts.add(shape, other, handlers);
+            }
+            else
+            {
+                // Contacts end outside of a step when a shape is removed;
+                // there is nothing to wait for then.
+                dispatchContact(shape, other, handlers);
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * A contact that began or ended during a step, waiting for its handlers
+     * to be called.
+     */
+    private static class BufferedContact
+    {
+        private Shape shape;
+        private Shape other;
+        private CollisionHandlers handlers;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * The contacts that began or ended during a step. The records are kept
+     * when the buffer is cleared and reused for the contacts of later steps,
+     * so buffering a contact does not allocate once the buffer has grown to
+     * the number of contacts in a step.
+     */
+    private static class ContactBuffer
+    {
+        private BufferedContact[] records = new BufferedContact[16];
+        private int count;
+
+
+        // ----------------------------------------------------------
+        public void add(Shape shape, Shape other, CollisionHandlers handlers)
+        {
+            if (count == records.length)
+            {
+                records = Arrays.copyOf(records, count * 2);
+            }
+
+            BufferedContact contact = records[count];
+
+            if (contact == null)
+            {
+                contact = new BufferedContact();
+                records[count] = contact;
+            }
+
+            contact.shape = shape;
+            contact.other = other;
+            contact.handlers = handlers;
+            count++;
+        }
+
+
+        // ----------------------------------------------------------
+        public void clear()
+        {
+            // Let go of the shapes, so that removed ones can be collected
+            for (int i = 0; i < count; i++)
+            {
+                records[i].shape = null;
+                records[i].other = null;
+                records[i].handlers = null;
+            }
+
+            count = 0;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * The handlers that collisions between shapes of two classes are sent
+     * to. Each one is null if the object it belongs to does not handle the
+     * collision.
+     */
+    private static class CollisionHandlers
+    {
+        private final EventDispatcher withDispatcher;
+        private final ReversibleEventDispatcher betweenDispatcher;
+
+        private HandlerMethod shapeWith;
+        private HandlerMethod otherWith;
+        private HandlerMethod fieldBetween;
+        private Class<?> viewClass;
+        private HandlerMethod viewBetween;
+        private Class<?> contextClass;
+        private HandlerMethod contextBetween;
+
+
+        // ----------------------------------------------------------
+        public CollisionHandlers(EventDispatcher withDispatcher,
+                ReversibleEventDispatcher betweenDispatcher)
+        {
+            this.withDispatcher = withDispatcher;
+            this.betweenDispatcher = betweenDispatcher;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * A collision handler method that the field calls directly, instead of
+     * having the event dispatcher look it up by name for every contact.
+     */
+    private static class HandlerMethod
+    {
+        private final Method method;
+        private final boolean reversed;
+
+
+        // ----------------------------------------------------------
+        /**
+         * @param method the method
+         * @param reversed true if the method takes the two shapes in the
+         *     opposite order from the contact
+         */
+        public HandlerMethod(Method method, boolean reversed)
+        {
+            this.method = method;
+            this.reversed = reversed;
+        }
+
+
+        // ----------------------------------------------------------
+        public void invoke(Object receiver, Object... args)
+        {
+            try
+            {
+                method.invoke(receiver, args);
+            }
+            catch (IllegalAccessException e)
+            {
+                throw new IllegalStateException(e);
+            }
+            catch (InvocationTargetException e)
+            {
+                // Let the handler's own exception through, as it would be
+                // if the handler had been called directly
+                Throwable cause = e.getCause();
+
+                if (cause instanceof RuntimeException)
+                {
+                    throw (RuntimeException) cause;
+                }
+                else if (cause instanceof Error)
+                {
+                    throw (Error) cause;
                 }
+                else
+                {
+                    throw new IllegalStateException(cause);
+                }
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Identifies the classes of the two shapes in a contact, and whether it
+     * began or ended, for caching the handlers that it is sent to.
+     */
+    private static class ContactPairKey
+    {
+        private Class<?> shapeClass;
+        private Class<?> otherClass;
+        private boolean ended;
+
+
+        // ----------------------------------------------------------
+        public ContactPairKey(Class<?> shapeClass, Class<?> otherClass,
+                boolean ended)
+        {
+            set(shapeClass, otherClass, ended);
+        }
+
+
+        // ----------------------------------------------------------
+        /**
+         * Changes the classes that the key identifies. Only used on the
+         * field's probe key, never on a key that is in the cache.
+         */
+        public void set(Class<?> shapeClass, Class<?> otherClass,
+                boolean ended)
+        {
+            this.shapeClass = shapeClass;
+            this.otherClass = otherClass;
+            this.ended = ended;
+        }
+
+
+        // ----------------------------------------------------------
+        @Override
+        public boolean equals(Object other)
+        {
+            if (other instanceof ContactPairKey)
+            {
+                ContactPairKey key = (ContactPairKey) other;
+                return shapeClass == key.shapeClass
+                        && otherClass == key.otherClass
+                        && ended == key.ended;
+            }
+            else
+            {
+                return false;
             }
         }
+
+
+        // ----------------------------------------------------------
+        @Override
+        public int hashCode()
+        {
+            int result = shapeClass.hashCode();
+            result = 31 * result + otherClass.hashCode();
+            result = 31 * result + (ended ? 1 : 0);
+            return result;
+        }
     }
 }
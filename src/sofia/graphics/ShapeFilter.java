@@ -16,14 +16,13 @@
 
 package sofia.graphics;
 
-import sofia.graphics.internal.Box2DUtils;
-import sofia.graphics.internal.FixtureIterator;
 
 import android.graphics.PointF;
 import android.graphics.RectF;
 
 import org.jbox2d.callbacks.QueryCallback;
 import org.jbox2d.collision.AABB;
+import org.jbox2d.collision.Collision;
 import org.jbox2d.collision.RayCastInput;
 import org.jbox2d.collision.RayCastOutput;
 import org.jbox2d.collision.shapes.CircleShape;
@@ -34,7 +33,14 @@ import org.jbox2d.dynamics.Body;
 import org.jbox2d.dynamics.Fixture;
 import org.jbox2d.dynamics.World;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 
 //-------------------------------------------------------------------------
 /**
@@ -60,6 +66,60 @@ public abstract class ShapeFilter<ShapeType extends Shape>
     private String descriptionOfConstraint;
     private int hashCode = 0;
 
+    // The links of the chain, ordered so that the cheapest tests run first;
+    // built the first time the filter is evaluated
+    private ShapeFilter<?>[] plan;
+
+    /**
+     * The cost of a filter that only tests a shape's class. Class tests
+     * always run first, so that later tests can rely on the shape's type.
+     */
+    protected static final int COST_CLASS = 0;
+
+    /**
+     * The cost of a filter that tests a simple property of a shape, such as
+     * its color or whether it is awake.
+     */
+    protected static final int COST_PROPERTY = 10;
+
+    /**
+     * The cost of a filter that does not specify its cost.
+     */
+    protected static final int COST_DEFAULT = 20;
+
+    /**
+     * The cost of a filter that tests a shape's geometry against a point,
+     * line, or area.
+     */
+    protected static final int COST_GEOMETRY = 30;
+
+    // Query modes
+    private static final int MATCH_ALL = 0;
+    private static final int MATCH_ANY = 1;
+    private static final int MATCH_FRONT = 2;
+    private static final int MATCH_BACK = 3;
+
+    // Per-thread scratch space for the geometric filters; the query geometry
+    // itself is built once, when each filter is created
+    private static final ThreadLocal<RayCastOutput> RAY_CAST_OUTPUT =
+        new ThreadLocal<RayCastOutput>() {
+            @Override
+            protected RayCastOutput initialValue()
+            {
+                return new RayCastOutput();
+            }
+        };
+
+    private static final Comparator<ShapeFilter<?>> COST_ORDER =
+        new Comparator<ShapeFilter<?>>() {
+            public int compare(ShapeFilter<?> filter1, ShapeFilter<?> filter2)
+            {
+                int cost1 = filter1.thisFilterCost();
+                int cost2 = filter2.thisFilterCost();
+                return (cost1 < cost2) ? -1 : ((cost1 == cost2) ? 0 : 1);
+            }
+        };
+
 
     //~ Constructor ...........................................................
 
@@ -108,7 +168,12 @@ public abstract class ShapeFilter<ShapeType extends Shape>
      */
     public ShapeType back()
     {
-        return all().back();
+        if (filteredCandidates != null)
+        {
+            return filteredCandidates.back();
+        }
+
+        return query(MATCH_BACK).best;
     }
 
 
@@ -134,7 +199,13 @@ public abstract class ShapeFilter<ShapeType extends Shape>
      */
     public boolean exist()
     {
-        return !isEmpty();
+        if (filteredCandidates != null)
+        {
+            return !filteredCandidates.isEmpty();
+        }
+
+        // Stop searching as soon as one shape matches.
+        return query(MATCH_ANY).best != null;
     }
 
 
@@ -150,7 +221,12 @@ public abstract class ShapeFilter<ShapeType extends Shape>
      */
     public ShapeType front()
     {
-        return all().front();
+        if (filteredCandidates != null)
+        {
+            return filteredCandidates.front();
+        }
+
+        return query(MATCH_FRONT).best;
     }
 
 
@@ -163,7 +239,7 @@ public abstract class ShapeFilter<ShapeType extends Shape>
      */
     public boolean isEmpty()
     {
-        return count() == 0;
+        return !exist();
     }
 
 
@@ -332,33 +408,20 @@ public abstract class ShapeFilter<ShapeType extends Shape>
                 }
 
                 @Override
-                protected boolean thisFilterAccepts(ShapeType shape)
+                protected int thisFilterCost()
                 {
-                    Body body = shape.getB2Body();
+                    return COST_GEOMETRY;
+                }
 
-                    if (body != null)
-                    {
-                        PolygonShape boundsShape = new PolygonShape();
-                        boundsShape.setAsBox(
-                                sorted.width() / 2, sorted.height() / 2);
-                        Transform boundsTransform = new Transform();
-                        boundsTransform.set(new Vec2(
-                                sorted.centerX(), sorted.centerY()), 0);
-
-                        for (Fixture fixture : new FixtureIterator(body))
-                        {
-                            if (body.getWorld().getPool().getCollision().
-                                    testOverlap(
-                                            fixture.getShape(), 0, boundsShape,
-                                            0, body.getTransform(),
-                                            boundsTransform))
-                            {
-                                return true;
-                            }
-                        }
-                    }
+                private final PolygonShape boundsShape =
+                    boxShape(sorted.width() / 2, sorted.height() / 2);
+                private final Transform boundsTransform =
+                    transformAt(sorted.centerX(), sorted.centerY());
 
-                    return false;
+                @Override
+                protected boolean thisFilterAccepts(ShapeType shape)
+                {
+                    return overlaps(shape, boundsShape, boundsTransform);
                 }
             };
         }
@@ -390,31 +453,18 @@ public abstract class ShapeFilter<ShapeType extends Shape>
             }
 
             @Override
-            protected boolean thisFilterAccepts(ShapeType shape)
+            protected int thisFilterCost()
             {
-                Body body = shape.getB2Body();
+                return COST_GEOMETRY;
+            }
 
-                if (body != null)
-                {
-                    CircleShape boundsShape = new CircleShape();
-                    boundsShape.setRadius(radius);
-                    Transform boundsTransform = new Transform();
-                    boundsTransform.set(new Vec2(x, y), 0);
+            private final CircleShape boundsShape = circleShape(radius);
+            private final Transform boundsTransform = transformAt(x, y);
 
-                    for (Fixture fixture : new FixtureIterator(body))
-                    {
-                        if (body.getWorld().getPool().getCollision().
-                                testOverlap(
-                                        fixture.getShape(), 0, boundsShape,
-                                        0, body.getTransform(),
-                                        boundsTransform))
-                        {
-                            return true;
-                        }
-                    }
-                }
-
-                return false;
+            @Override
+            protected boolean thisFilterAccepts(ShapeType shape)
+            {
+                return overlaps(shape, boundsShape, boundsTransform);
             }
         };
     }
@@ -460,6 +510,12 @@ public abstract class ShapeFilter<ShapeType extends Shape>
             return new ShapeFilter<ConstrainedShapeType>(
                     this, "with class \"" + predicate + '"')
             {
+                @Override
+                protected int thisFilterCost()
+                {
+                    return COST_CLASS;
+                }
+
                 @Override
                 protected boolean thisFilterAccepts(ConstrainedShapeType shape)
                 {
@@ -512,6 +568,12 @@ public abstract class ShapeFilter<ShapeType extends Shape>
             return new ShapeFilter<ShapeType>(this,
                     "with color \"" + color + '"')
             {
+                @Override
+                protected int thisFilterCost()
+                {
+                    return COST_PROPERTY;
+                }
+
                 @Override
                 protected boolean thisFilterAccepts(ShapeType shape)
                 {
@@ -536,6 +598,12 @@ public abstract class ShapeFilter<ShapeType extends Shape>
         return new ShapeFilter<ShapeType>(this,
                 "with sensor \"" + sensor + '"')
         {
+            @Override
+            protected int thisFilterCost()
+            {
+                return COST_PROPERTY;
+            }
+
             @Override
             protected boolean thisFilterAccepts(ShapeType shape)
             {
@@ -560,6 +628,12 @@ public abstract class ShapeFilter<ShapeType extends Shape>
         return new ShapeFilter<ShapeType>(this,
                 "with awake \"" + awake + '"')
         {
+            @Override
+            protected int thisFilterCost()
+            {
+                return COST_PROPERTY;
+            }
+
             @Override
             protected boolean thisFilterAccepts(ShapeType shape)
             {
@@ -592,6 +666,12 @@ public abstract class ShapeFilter<ShapeType extends Shape>
             return new ShapeFilter<ShapeType>(this,
                     "with linear velocity \"" + predicate + '"')
             {
+                @Override
+                protected int thisFilterCost()
+                {
+                    return COST_PROPERTY;
+                }
+
                 @Override
                 protected boolean thisFilterAccepts(ShapeType shape)
                 {
@@ -633,6 +713,12 @@ public abstract class ShapeFilter<ShapeType extends Shape>
             return new ShapeFilter<ShapeType>(this,
                     "with angular velocity \"" + predicate + '"')
             {
+                @Override
+                protected int thisFilterCost()
+                {
+                    return COST_PROPERTY;
+                }
+
                 @Override
                 protected boolean thisFilterAccepts(ShapeType shape)
                 {
@@ -666,7 +752,7 @@ public abstract class ShapeFilter<ShapeType extends Shape>
      * @param point the point to test
      * @return a new filter with the given restriction
      */
-    public ShapeFilter<ShapeType> locatedAt(final PointF point)
+    public ShapeFilter<ShapeType> locatedAt(PointF point)
     {
         if (point == null)
         {
@@ -674,13 +760,26 @@ public abstract class ShapeFilter<ShapeType extends Shape>
         }
         else
         {
+            // Copy the point, so that the broad-phase query and the exact
+            // test agree even if the caller changes it later.
+            final float x = point.x;
+            final float y = point.y;
+
             return new ShapeFilter<ShapeType>(this,
                     "located at \"" + Geometry.toString(point) + '"')
             {
+                private final Vec2 vec = new Vec2(x, y);
+
                 @Override
                 protected RectF thisQueryBounds()
                 {
-                    return new RectF(point.x, point.y, point.x, point.y);
+                    return new RectF(x, y, x, y);
+                }
+
+                @Override
+                protected int thisFilterCost()
+                {
+                    return COST_GEOMETRY;
                 }
 
                 @Override
@@ -690,9 +789,8 @@ public abstract class ShapeFilter<ShapeType extends Shape>
 
                     if (body != null)
                     {
-                        Vec2 vec = new Vec2(point.x, point.y);
-
-                        for (Fixture fixture : new FixtureIterator(body))
+                        for (Fixture fixture = body.getFixtureList();
+                                fixture != null; fixture = fixture.getNext())
                         {
                             if (fixture.testPoint(vec))
                             {
@@ -731,8 +829,7 @@ public abstract class ShapeFilter<ShapeType extends Shape>
      * @param point the point to test
      * @return a new filter with the given restriction
      */
-    public ShapeFilter<ShapeType> throughLine(
-            final PointF start, final PointF end)
+    public ShapeFilter<ShapeType> throughLine(PointF start, PointF end)
     {
         if (start == null || end == null)
         {
@@ -740,14 +837,32 @@ public abstract class ShapeFilter<ShapeType extends Shape>
         }
         else
         {
+            // Copy the end points, so that the broad-phase query and the
+            // exact test agree even if the caller changes them later.
+            final float x1 = start.x;
+            final float y1 = start.y;
+            final float x2 = end.x;
+            final float y2 = end.y;
+
             return new ShapeFilter<ShapeType>(this,
                     "through line \"(" + Geometry.toString(start) + ")-("
                     + Geometry.toString(end) + ")")
             {
+                private final RayCastInput input =
+                        rayCastInput(x1, y1, x2, y2);
+
                 @Override
                 protected RectF thisQueryBounds()
                 {
-                    return new RectF(start.x, start.y, end.x, end.y);
+                    RectF bounds = new RectF(x1, y1, x2, y2);
+                    bounds.sort();
+                    return bounds;
+                }
+
+                @Override
+                protected int thisFilterCost()
+                {
+                    return COST_GEOMETRY;
                 }
 
                 @Override
@@ -757,14 +872,10 @@ public abstract class ShapeFilter<ShapeType extends Shape>
 
                     if (body != null)
                     {
-                        RayCastInput input = new RayCastInput();
-                        Box2DUtils.pointFToVec2(start, input.p1);
-                        Box2DUtils.pointFToVec2(end, input.p2);
-                        input.maxFraction = 1;
+                        RayCastOutput output = RAY_CAST_OUTPUT.get();
 
-                        RayCastOutput output = new RayCastOutput();
-
-                        for (Fixture fixture : new FixtureIterator(body))
+                        for (Fixture fixture = body.getFixtureList();
+                                fixture != null; fixture = fixture.getNext())
                         {
                             if (fixture.raycast(output, input, 0))
                             {
@@ -880,6 +991,26 @@ public abstract class ShapeFilter<ShapeType extends Shape>
     protected abstract boolean thisFilterAccepts(ShapeType object);
 
 
+    // ----------------------------------------------------------
+    /**
+     * Gets the relative cost of evaluating {@link #thisFilterAccepts} for
+     * this link of the chain. When a filter is evaluated, the links are
+     * tested from cheapest to most expensive, so that a shape that fails a
+     * cheap test never reaches an expensive one; links with the same cost
+     * are tested in the order they were chained. Subclasses that override
+     * this should return one of the {@code COST_*} constants, or a value
+     * between them; values below {@link #COST_CLASS} are not allowed, since
+     * class tests must run first.
+     *
+     * @return the cost of this filter's test; {@link #COST_DEFAULT} unless
+     *     overridden
+     */
+    protected int thisFilterCost()
+    {
+        return COST_DEFAULT;
+    }
+
+
     // ----------------------------------------------------------
     /**
      * Gets a bounding box that indicates which subregion of the world should
@@ -960,26 +1091,33 @@ public abstract class ShapeFilter<ShapeType extends Shape>
 
     // ----------------------------------------------------------
     /**
-     * TODO: document.
-     * @param object TODO: describe
-     * @return TODO: describe
+     * Tests whether a shape passes every link of this filter chain, running
+     * the cheapest tests first and stopping at the first one that fails.
+     *
+     * @param object the shape to test
+     * @return true if the shape passes all of the tests
      */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
     protected final boolean accept(ShapeType object)
     {
-        boolean result = true;
+        ShapeFilter[] steps = plan();
 
-        if (previousFilter != null)
+        for (int i = 0; i < steps.length; i++)
         {
-            result = previousFilter.accept(object);
+            if (!steps[i].thisFilterAccepts(object))
+            {
+                return false;
+            }
         }
 
-        return result && thisFilterAccepts(object);
+        return true;
     }
 
 
     // ----------------------------------------------------------
     /**
-     * TODO: document.
+     * Evaluates the filter and stores all of the matching shapes, if that
+     * has not already been done.
      */
     protected final void filter()
     {
@@ -988,44 +1126,194 @@ public abstract class ShapeFilter<ShapeType extends Shape>
             return;
         }
 
-        filteredCandidates = new ShapeSet<ShapeType>();
+        ShapeSet<ShapeType> result = new ShapeSet<ShapeType>();
+        result.addAll(query(MATCH_ALL).matches);
+        filteredCandidates = result;
+    }
 
-        RectF queryBounds = queryBounds();
-        AABB queryAABB;
 
-        if (queryBounds == null)
+    // ----------------------------------------------------------
+    /**
+     * Tests whether any of a shape's fixtures overlap the specified query
+     * geometry.
+     *
+     * @param shape the shape to test
+     * @param boundsShape the query geometry
+     * @param boundsTransform the position of the query geometry
+     * @return true if the shape overlaps the query geometry
+     */
+    private static boolean overlaps(Shape shape,
+            org.jbox2d.collision.shapes.Shape boundsShape,
+            Transform boundsTransform)
+    {
+        Body body = shape.getB2Body();
+
+        if (body != null)
         {
-            queryAABB = new AABB(
-                    new Vec2(Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY),
-                    new Vec2(Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY));
+            Collision collision = body.getWorld().getPool().getCollision();
+            Transform bodyTransform = body.getTransform();
+
+            for (Fixture fixture = body.getFixtureList();
+                    fixture != null; fixture = fixture.getNext())
+            {
+                if (collision.testOverlap(fixture.getShape(), 0,
+                        boundsShape, 0, bodyTransform, boundsTransform))
+                {
+                    return true;
+                }
+            }
         }
-        else
+
+        return false;
+    }
+
+
+    // ----------------------------------------------------------
+    private static PolygonShape boxShape(float halfWidth, float halfHeight)
+    {
+        PolygonShape box = new PolygonShape();
+        box.setAsBox(halfWidth, halfHeight);
+        return box;
+    }
+
+
+    // ----------------------------------------------------------
+    private static CircleShape circleShape(float radius)
+    {
+        CircleShape circle = new CircleShape();
+        circle.setRadius(radius);
+        return circle;
+    }
+
+
+    // ----------------------------------------------------------
+    private static Transform transformAt(float x, float y)
+    {
+        Transform transform = new Transform();
+        transform.set(new Vec2(x, y), 0);
+        return transform;
+    }
+
+
+    // ----------------------------------------------------------
+    private static RayCastInput rayCastInput(
+            float x1, float y1, float x2, float y2)
+    {
+        RayCastInput input = new RayCastInput();
+        input.p1.set(x1, y1);
+        input.p2.set(x2, y2);
+        input.maxFraction = 1;
+        return input;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the links of this filter chain in the order they should be tested,
+     * building the order the first time it is needed.
+     *
+     * @return the links of the chain, from cheapest to most expensive
+     */
+    private ShapeFilter<?>[] plan()
+    {
+        if (plan == null)
         {
-            queryAABB = new AABB(
-                    new Vec2(queryBounds.left, queryBounds.top),
-                    new Vec2(queryBounds.right, queryBounds.bottom));
+            List<ShapeFilter<?>> links = new ArrayList<ShapeFilter<?>>();
+
+            for (ShapeFilter<?> link = this;
+                    link != null; link = link.previousFilter)
+            {
+                links.add(link);
+            }
+
+            // Restore the order in which the links were chained, so that
+            // the (stable) sort keeps equal-cost links in that order.
+            Collections.reverse(links);
+
+            ShapeFilter<?>[] steps =
+                    links.toArray(new ShapeFilter<?>[links.size()]);
+            Arrays.sort(steps, COST_ORDER);
+            plan = steps;
         }
 
-        if (!Float.isNaN(queryAABB.lowerBound.x))
+        return plan;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Runs the filter's query against the world.
+     *
+     * @param mode what the query should look for
+     * @return the callback that was used for the query, which holds the
+     *     results
+     */
+    private B2QueryCallback query(int mode)
+    {
+        B2QueryCallback callback = new B2QueryCallback(mode);
+        RectF queryBounds = queryBounds();
+
+        if (queryBounds == null || !Float.isNaN(queryBounds.left))
         {
+            AABB queryAABB;
+
+            if (queryBounds == null)
+            {
+                queryAABB = new AABB(
+                    new Vec2(Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY),
+                    new Vec2(Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY));
+            }
+            else
+            {
+                queryAABB = new AABB(
+                        new Vec2(queryBounds.left, queryBounds.top),
+                        new Vec2(queryBounds.right, queryBounds.bottom));
+            }
+
             World world = b2World();
 
             synchronized (world)
             {
-                B2QueryCallback callback = new B2QueryCallback();
                 world.queryAABB(callback, queryAABB);
             }
         }
+
+        return callback;
     }
 
 
     // ----------------------------------------------------------
     /**
      * This nested class creates the callback type to handle reporting
-     * the individual fixtures within a region a query is called on.
+     * the individual fixtures within a region a query is called on. Each
+     * shape is tested at most once, no matter how many fixtures it has.
      */
     private class B2QueryCallback implements QueryCallback
     {
+        //~ Fields ............................................................
+
+        private final int mode;
+        private final Set<Shape> tested;
+        private final List<ShapeType> matches;
+        private final Comparator<Shape> drawingOrder;
+        private ShapeType best;
+
+
+        //~ Constructors ......................................................
+
+        // ------------------------------------------------------
+        public B2QueryCallback(int mode)
+        {
+            this.mode = mode;
+            tested = Collections.newSetFromMap(
+                    new IdentityHashMap<Shape, Boolean>());
+            matches = (mode == MATCH_ALL)
+                    ? new ArrayList<ShapeType>() : null;
+            drawingOrder = (mode == MATCH_FRONT || mode == MATCH_BACK)
+                    ? new ZIndexComparator() : null;
+        }
+
+
         //~ Methods ...........................................................
 
         // ------------------------------------------------------
@@ -1041,11 +1329,33 @@ public abstract class ShapeFilter<ShapeType extends Shape>
             ShapeType shape =
                     (ShapeType) aFixture.m_userData;
 
-            if (!filteredCandidates.contains(shape))
+            if (shape == null || !tested.add(shape))
             {
-                if (accept(shape))
+                return true;
+            }
+
+            if (best != null && drawingOrder != null)
+            {
+                // Only a shape in front of (or behind) the best match so far
+                // could replace it, so don't bother testing the others.
+                int order = drawingOrder.compare(shape, best);
+
+                if ((mode == MATCH_FRONT) ? order <= 0 : order >= 0)
+                {
+                    return true;
+                }
+            }
+
+            if (accept(shape))
+            {
+                if (mode == MATCH_ALL)
+                {
+                    matches.add(shape);
+                }
+                else
                 {
-                    filteredCandidates.add(shape);
+                    best = shape;
+                    return mode != MATCH_ANY;
                 }
             }
 
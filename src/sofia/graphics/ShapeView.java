@@ -22,9 +22,11 @@ import sofia.internal.events.MotionEventDispatcher;
 
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.PointF;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
 import android.os.SystemClock;
@@ -34,6 +36,9 @@ import android.view.MotionEvent;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
+import org.jbox2d.common.Vec2;
+import org.jbox2d.dynamics.Body;
+import org.jbox2d.dynamics.BodyDef;
 import org.jbox2d.dynamics.World;
 
 import java.lang.reflect.Method;
@@ -63,9 +68,44 @@ public class ShapeView
     private Set<Long> threadsBlockingRepaint;
     private ShapeAnimationManager animationManager;
     //private RepaintThread repaintThread;
-    private PhysicsThread physicsThread;
+    private volatile PhysicsThread physicsThread;
     private CoordinateSystem coordinateSystem;
 
+    // Simulation scheduling
+    private volatile float simulationRate;
+    private volatile int frameRate;
+    private volatile int maxStepsPerFrame;
+    private volatile boolean interpolationEnabled;
+    private volatile float interpolationAlpha;
+    private float[] drawTransform;
+    private SceneSnapshot drawList;
+    private float[] layerTransform;
+    private RectF drawArea;
+    private RectF cullingArea;
+    private RectF cullingQuery;
+    private List<Shape> shapesToDraw;
+
+    // Decoupled rendering
+    private volatile boolean renderThreadEnabled;
+    private RenderThread renderThread;
+    private final Object snapshotLock = new Object();
+    private SceneSnapshot frontSnapshot;
+    private SceneSnapshot backSnapshot;
+    private boolean snapshotPending;
+
+    // Ranges of z-indices whose shapes are drawn from cached bitmaps;
+    // replaced (never changed in place) when layers are added or removed
+    private volatile CachedLayer[] cachedLayers = new CachedLayer[0];
+    private CanvasDrawing layerDrawing;
+    private RectF layerQuery;
+    private List<Shape> layerShapes;
+
+    // Dirty region tracking, in device coordinates
+    private final Object repaintLock = new Object();
+    private final Rect dirtyRegion = new Rect();
+    private boolean fullRepaintNeeded;
+    private boolean repaintRequested;
+
     // Event forwarders
     private final CoordinateRespectingMotionEventDispatcher onTouchDown =
             new CoordinateRespectingMotionEventDispatcher("onTouchDown");
@@ -87,6 +127,23 @@ public class ShapeView
 
     private Shape shapeBeingDragged;
 
+    private static final float DEFAULT_SIMULATION_RATE = 30;
+    private static final int DEFAULT_FRAME_RATE = 30;
+    private static final int DEFAULT_MAX_STEPS_PER_FRAME = 5;
+
+    // The longest frame (in seconds) that the simulation will try to catch up
+    // on; anything longer (for example, after the app was paused) is dropped.
+    private static final double MAX_FRAME_TIME = 0.25;
+
+    // The number of pixels around a changed area that are also redrawn, to
+    // cover antialiased edges.
+    private static final int DIRTY_REGION_PADDING = 2;
+
+    // The number of pixels beyond the edges of the view in which shapes are
+    // still considered for drawing, to catch shapes whose outlines extend
+    // past their physical bounds.
+    private static final int CULLING_MARGIN = 64;
+
 
     //~ Constructors ..........................................................
 
@@ -166,6 +223,25 @@ public class ShapeView
         gestureDetectors = new ArrayList<Object>();
         coordinateSystem = new CoordinateSystem(this);
 
+        simulationRate = DEFAULT_SIMULATION_RATE;
+        frameRate = DEFAULT_FRAME_RATE;
+        maxStepsPerFrame = DEFAULT_MAX_STEPS_PER_FRAME;
+        interpolationEnabled = true;
+        interpolationAlpha = 1;
+        drawTransform = new float[5];
+        drawList = new SceneSnapshot();
+        layerTransform = new float[5];
+        drawArea = new RectF();
+        cullingArea = new RectF();
+        cullingQuery = new RectF();
+        shapesToDraw = new ArrayList<Shape>();
+        layerDrawing = new CanvasDrawing();
+        layerQuery = new RectF();
+        layerShapes = new ArrayList<Shape>();
+
+        frontSnapshot = new SceneSnapshot();
+        backSnapshot = new SceneSnapshot();
+
         setFocusableInTouchMode(true);
     }
 
@@ -213,6 +289,284 @@ public class ShapeView
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Gets the number of physics steps that are simulated per second of real
+     * time.
+     *
+     * @return the number of physics steps simulated per second
+     */
+    public float getSimulationRate()
+    {
+        return simulationRate;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sets the number of physics steps that are simulated per second of real
+     * time. Each step always advances the world by exactly
+     * {@code 1 / stepsPerSecond} seconds, so the simulation behaves the same
+     * regardless of how fast the device can draw frames. Higher rates give
+     * more accurate collisions at the cost of more CPU time. The default is
+     * 30 steps per second.
+     *
+     * @param stepsPerSecond the number of physics steps to simulate per
+     *     second
+     */
+    public void setSimulationRate(float stepsPerSecond)
+    {
+        if (stepsPerSecond <= 0)
+        {
+            throw new IllegalArgumentException(
+                "The simulation rate must be positive. It was: "
+                + stepsPerSecond);
+        }
+
+        simulationRate = stepsPerSecond;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the maximum number of frames per second that the view will draw.
+     *
+     * @return the target frame rate, in frames per second
+     */
+    public int getFrameRate()
+    {
+        return frameRate;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sets the maximum number of frames per second that the view will draw.
+     * The view sleeps for whatever is left of each frame after simulating and
+     * drawing it, so lower frame rates use less CPU and battery. The default
+     * is 30 frames per second.
+     *
+     * @param framesPerSecond the target frame rate, in frames per second
+     */
+    public void setFrameRate(int framesPerSecond)
+    {
+        if (framesPerSecond <= 0)
+        {
+            throw new IllegalArgumentException(
+                "The frame rate must be positive. It was: "
+                + framesPerSecond);
+        }
+
+        frameRate = framesPerSecond;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the maximum number of physics steps that will be simulated before
+     * a single frame is drawn.
+     *
+     * @return the maximum number of physics steps per frame
+     */
+    public int getMaxSimulationStepsPerFrame()
+    {
+        return maxStepsPerFrame;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sets the maximum number of physics steps that will be simulated before
+     * a single frame is drawn. When a frame takes longer than expected, the
+     * simulation takes extra steps to catch up with real time; this cap keeps
+     * a slow device from falling further and further behind by spending all
+     * of its time stepping. Time beyond the cap is dropped, so the simulation
+     * will appear to slow down instead. The default is 5.
+     *
+     * @param maxSteps the maximum number of physics steps per frame
+     */
+    public void setMaxSimulationStepsPerFrame(int maxSteps)
+    {
+        if (maxSteps < 1)
+        {
+            throw new IllegalArgumentException(
+                "At least one step per frame is required. It was: "
+                + maxSteps);
+        }
+
+        maxStepsPerFrame = maxSteps;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether moving shapes are drawn at a position
+     * interpolated between the two most recent physics steps.
+     *
+     * @return true if drawing is interpolated between physics steps
+     */
+    public boolean isInterpolationEnabled()
+    {
+        return interpolationEnabled;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sets a value indicating whether moving shapes are drawn at a position
+     * interpolated between the two most recent physics steps. Since frames
+     * and physics steps do not line up exactly, interpolation makes motion
+     * look smooth instead of jittery, at the cost of drawing shapes up to one
+     * step behind the simulation. The default is true.
+     *
+     * @param enabled true if drawing should be interpolated between physics
+     *     steps
+     */
+    public void setInterpolationEnabled(boolean enabled)
+    {
+        interpolationEnabled = enabled;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether shapes are drawn on a dedicated render
+     * thread instead of on the physics thread.
+     *
+     * @return true if the view draws on a separate render thread
+     * @see #setRenderThreadEnabled(boolean)
+     */
+    public boolean isRenderThreadEnabled()
+    {
+        return renderThreadEnabled;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * <p>
+     * Sets a value indicating whether shapes are drawn on a dedicated render
+     * thread instead of on the physics thread. The default is false.
+     * </p><p>
+     * When enabled, the physics thread does not draw each frame itself.
+     * Instead, after stepping the world it records a snapshot of which shapes
+     * are visible, their drawing order, and where they should be drawn, and
+     * hands it to the render thread. The render thread draws from the
+     * snapshot without locking the physical world, so the next physics step,
+     * touch handling, and changes to the {@link ShapeField} can proceed while
+     * the previous frame is still being drawn. This can improve frame rates
+     * on devices with more than one core.
+     * </p><p>
+     * Shapes still draw themselves using their own current appearance (such
+     * as their color), so changes made on other threads may show up a frame
+     * earlier than the position changes that accompany them.
+     * </p>
+     *
+     * @param enabled true to draw on a separate render thread
+     */
+    public void setRenderThreadEnabled(boolean enabled)
+    {
+        renderThreadEnabled = enabled;
+
+        if (physicsThread != null)
+        {
+            if (enabled)
+            {
+                startRenderThread();
+            }
+            else
+            {
+                stopRenderThread();
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * <p>
+     * Draws the shapes whose z-indices are in the specified range from a
+     * cached bitmap, instead of drawing each of them on every frame. The
+     * shapes are drawn into the bitmap once, and the bitmap is drawn in their
+     * place, in the same position in the drawing order, until one of them
+     * changes. This is intended for scenery, such as a background made up of
+     * many tiles, that rarely changes while other shapes move in front of
+     * it.
+     * </p><p>
+     * The bitmap is drawn again whenever a shape in the range changes, is
+     * added or removed, or is moved by the physics simulation, and whenever
+     * the coordinate system or the size of the view changes. Shapes that
+     * move on every frame should therefore be given z-indices outside of
+     * any cached range, or they will defeat the cache.
+     * </p>
+     *
+     * @param minZIndex the lowest z-index in the range
+     * @param maxZIndex the highest z-index in the range
+     * @throws IllegalArgumentException if the range is empty or overlaps a
+     *     range that is already cached
+     */
+    public synchronized void addCachedLayer(int minZIndex, int maxZIndex)
+    {
+        if (minZIndex > maxZIndex)
+        {
+            throw new IllegalArgumentException("The lowest z-index of a "
+                + "cached layer cannot be greater than its highest z-index.");
+        }
+
+        CachedLayer[] layers = cachedLayers;
+
+        for (CachedLayer layer : layers)
+        {
+            if (minZIndex <= layer.maxZIndex && layer.minZIndex <= maxZIndex)
+            {
+                throw new IllegalArgumentException("The z-index range "
+                    + minZIndex + " to " + maxZIndex + " overlaps the cached "
+                    + "layer from " + layer.minZIndex + " to "
+                    + layer.maxZIndex + ".");
+            }
+        }
+
+        CachedLayer[] newLayers = new CachedLayer[layers.length + 1];
+        System.arraycopy(layers, 0, newLayers, 0, layers.length);
+        newLayers[layers.length] = new CachedLayer(minZIndex, maxZIndex);
+        cachedLayers = newLayers;
+
+        conditionallyRepaint();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Stops drawing any shapes from cached bitmaps, and discards the
+     * bitmaps.
+     *
+     * @see #addCachedLayer(int, int)
+     */
+    public synchronized void removeCachedLayers()
+    {
+        cachedLayers = new CachedLayer[0];
+        conditionallyRepaint();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Marks the cached layer, if any, that holds shapes with the specified
+     * z-index as needing to be drawn again.
+     *
+     * @param zIndex the z-index of a shape that has changed
+     */
+    /*package*/ void invalidateCachedLayer(int zIndex)
+    {
+        CachedLayer layer = cachedLayerFor(cachedLayers, zIndex);
+
+        if (layer != null)
+        {
+            layer.invalidate();
+        }
+    }
+
+
     // ----------------------------------------------------------
     /**
      * Does this view automatically repaint, or is an explicit call needed?
@@ -326,6 +680,8 @@ public class ShapeView
      * Returns all objects with the logical location within the specified
      * circle. In other words an object A is within the range of an object B
      * if the distance between the center of the two objects is less than r.
+     * The search uses a spatial index over the shape field, so it only
+     * examines shapes near the circle.
      *
      * @param x Center of the circle.
      * @param y Center of the circle.
@@ -339,7 +695,7 @@ public class ShapeView
     public <MyShape extends Shape> Set<MyShape> getShapesInRange(
         float x, float y, float r, Class<MyShape> cls)
     {
-        return null; //collisionChecker.getObjectsInRange(x, y, r, cls);
+        return shapeField.getSpatialIndex().getShapesInRange(x, y, r, cls);
     }
 
 
@@ -366,20 +722,22 @@ public class ShapeView
             throw new IllegalArgumentException(
                 "Distance must not be less than 0.0. It was: " + distance);
         }
-        return null; //collisionChecker.getNeighbors(shape, distance, diag, cls);
+        return shapeField.getSpatialIndex().getNeighbors(
+            shape, distance, diag, cls);
     }
 
 
     // ----------------------------------------------------------
     /**
-     * Return all objects that intersect a straight line from the location at
-     * a specified angle. The angle is clockwise.
+     * Return all objects whose bounds intersect a straight line from the
+     * location at a specified angle. The angle is clockwise.
      *
      * @param x x-coordinate.
      * @param y y-coordinate.
-     * @param angle The angle relative to current rotation of the object.
-     *            (0-359).
-     * @param length How far we want to look (in cells).
+     * @param angle The angle of the line, in degrees clockwise from the
+     *            positive x-axis (0-359).
+     * @param length How far we want to look (in the view's coordinate
+     *            system).
      * @param cls Class of objects to look for (null or Object.class will find
      *            all classes).
      * @param <MyShape> The type of shape to look for, as specified
@@ -389,9 +747,8 @@ public class ShapeView
     public <MyShape extends Shape> Set<MyShape> getShapesInDirection(
         float x, float y, float angle, float length, Class<MyShape> cls)
     {
-        return null;
-        //return collisionChecker.getObjectsInDirection(
-        //    x, y, angle, length, cls);
+        return shapeField.getSpatialIndex().getShapesInDirection(
+            x, y, angle, length, cls);
     }
 
 
@@ -468,6 +825,13 @@ public class ShapeView
 
 
     // ----------------------------------------------------------
+    /**
+     * Marks the specified area of the view as needing to be redrawn, and
+     * repaints it if the view is automatically repainting.
+     *
+     * @param bounds the area to redraw, in the view's coordinate system, or
+     *     null to redraw the entire view
+     */
     public void conditionallyRepaint(RectF bounds)
     {
         if (physicsThread == null && shapeField.hasNonstaticShapes())
@@ -475,14 +839,19 @@ public class ShapeView
             startPhysicsSimulation();
         }
 
+        invalidateRegion(bounds);
+
         if (doesAutoRepaint())
         {
-            repaint(bounds);
+            requestRepaint();
         }
     }
 
 
     // ----------------------------------------------------------
+    /**
+     * Redraws the entire view.
+     */
     public void repaint()
     {
         repaint(null);
@@ -490,14 +859,105 @@ public class ShapeView
 
 
     // ----------------------------------------------------------
+    /**
+     * Redraws the specified area of the view, along with any other areas that
+     * have changed since the view was last drawn. Only the shapes that
+     * overlap the redrawn area are drawn again.
+     *
+     * @param bounds the area to redraw, in the view's coordinate system, or
+     *     null to redraw the entire view
+     */
     public void repaint(RectF bounds)
     {
-        /*if (repaintThread == null)
+        invalidateRegion(bounds);
+        requestRepaint();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Adds an area to the region that will be redrawn the next time the view
+     * is repainted.
+     *
+     * @param bounds the area, in the view's coordinate system, or null to
+     *     redraw the entire view
+     */
+    private void invalidateRegion(RectF bounds)
+    {
+        if (bounds == null)
         {
-            return;
+            synchronized (repaintLock)
+            {
+                fullRepaintNeeded = true;
+            }
+        }
+        else
+        {
+            RectF device = new RectF(bounds);
+            coordinateSystem.localToDevice(device);
+
+            // Round outward and leave room for antialiasing, which can touch
+            // pixels just outside the shape's exact outline.
+            Rect pixels = new Rect();
+            device.roundOut(pixels);
+            pixels.inset(-DIRTY_REGION_PADDING, -DIRTY_REGION_PADDING);
+
+            synchronized (repaintLock)
+            {
+                dirtyRegion.union(pixels);
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Asks the physics thread to redraw the invalidated region of the view
+     * during its next frame.
+     */
+    private void requestRepaint()
+    {
+        synchronized (repaintLock)
+        {
+            repaintRequested = true;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the region of the view that needs to be redrawn in the current
+     * frame, and resets it so that the next frame starts clean.
+     *
+     * @param full true to redraw the entire view regardless of what has been
+     *     invalidated
+     * @param region receives the region to redraw, in device coordinates
+     * @return true if anything needs to be redrawn, otherwise false
+     */
+    private boolean takeRepaintRegion(boolean full, Rect region)
+    {
+        synchronized (repaintLock)
+        {
+            if (!full && !repaintRequested)
+            {
+                return false;
+            }
+
+            if (full || fullRepaintNeeded)
+            {
+                region.set(0, 0, getWidth(), getHeight());
+            }
+            else
+            {
+                region.set(dirtyRegion);
+            }
+
+            repaintRequested = false;
+            fullRepaintNeeded = false;
+            dirtyRegion.setEmpty();
         }
 
-        repaintThread.repaintIfNecessary(bounds);*/
+        return region.intersect(0, 0, getWidth(), getHeight());
     }
 
 
@@ -505,50 +965,47 @@ public class ShapeView
     private long framesThusFar = 0;
     private double fps = 0;
 
+    // The frame rate overlay is drawn every frame, so its paint and text are
+    // kept around instead of being created each time.
+    private final Paint fpsPaint = new Paint();
+    private final char[] fpsText = new char[24];
+    private int fpsTextLength = formatFrameRate(fpsText, 0);
+
     // ----------------------------------------------------------
     /**
      * The real method that performs shape drawing in response to a
      * callback from the repainting thread.
+     *
+     * @param region the region of the view to redraw, in device coordinates
      */
-    private void doRepaint(RectF bounds)
+    private void doRepaint(Rect region)
     {
         if (surfaceCreated)
         {
             try
             {
-                drawing.canvas = getHolder().lockCanvas(null);
+                // The surface may enlarge the region (for example, if its
+                // previous contents were lost), so it has to be read back
+                // after locking.
+                drawing.canvas = getHolder().lockCanvas(region);
 
                 if (drawing.canvas != null)
                 {
-                    synchronized (getHolder())
-                    {
-                        Drawable background = getBackground();
+                    RectF bounds = null;
 
-                        if (background != null)
-                        {
-                            background.draw(drawing.canvas);
-                        }
-                        else if (backgroundColor != null)
-                        {
-                            drawing.canvas.drawColor(
-                                    backgroundColor.toRawColor());
-                        }
+                    if (region.left > 0 || region.top > 0
+                            || region.right < getWidth()
+                            || region.bottom < getHeight())
+                    {
+                        bounds = new RectF(region);
+                        coordinateSystem.deviceToLocal(bounds);
+                    }
 
+                    synchronized (getHolder())
+                    {
+                        drawBackground(drawing.canvas);
                         drawContents(bounds);
-
-                        framesThusFar++;
-
-                        if (framesThusFar == 60)
-                        {
-                            long thisFrame = SystemClock.elapsedRealtime();
-                            double duration = thisFrame - lastFrameStart;
-                            lastFrameStart = thisFrame;
-                            fps = (framesThusFar / (duration / 1000));
-                            framesThusFar = 0;
-                        }
-
-                        String fpsStr = "fps: " + fps;
-                        drawing.canvas.drawText(fpsStr, 0, 12, new Paint());
+                        drawFrameRate(drawing.canvas);
                     }
                 }
             }
@@ -564,68 +1021,594 @@ public class ShapeView
 
 
     // ----------------------------------------------------------
-    /**
-     * Draw all of this view's shapes on the given canvas.
-     * @param canvas The canvas to draw on.
-     */
-    protected void drawContents(RectF repaintBounds)
+    private void drawBackground(Canvas canvas)
     {
-        drawing.canvas.save();
-        coordinateSystem.applyTransform(drawing.canvas);
+        Drawable background = getBackground();
 
-        synchronized (shapeField.getB2World())
+        if (background != null)
         {
-            for (Shape shape : shapeField)
-            {
-                if (shape.getParentView() != null && shape.isVisible()
-                        && shape.getBounds() != null)
-                {
-                    drawing.canvas.save();
-
-                    PointF pos = shape.getPosition();
-                    drawing.canvas.rotate(shape.getRotation(), pos.x, pos.y);
-
-                    shape.draw(drawing);
-
-                    drawing.canvas.restore();
-                }
-            }
+            background.draw(canvas);
+        }
+        else if (backgroundColor != null)
+        {
+            canvas.drawColor(backgroundColor.toRawColor());
         }
-
-        drawing.canvas.restore();
     }
 
 
     // ----------------------------------------------------------
-    @Override
-    public boolean dispatchTouchEvent(MotionEvent e)
+    private void drawFrameRate(Canvas canvas)
     {
-        internalSetAutoRepaintForThread(false);
-        boolean result = super.dispatchTouchEvent(e);
-        internalSetAutoRepaintForThread(true);
-        repaint();
+        framesThusFar++;
 
-        return result;
+        if (framesThusFar == 60)
+        {
+            long thisFrame = SystemClock.elapsedRealtime();
+            double duration = thisFrame - lastFrameStart;
+            lastFrameStart = thisFrame;
+            fps = (framesThusFar / (duration / 1000));
+            framesThusFar = 0;
+            fpsTextLength = formatFrameRate(fpsText, fps);
+        }
+
+        canvas.drawText(fpsText, 0, fpsTextLength, 0, 12, fpsPaint);
     }
 
 
     // ----------------------------------------------------------
     /**
-     * Turn on support for pinching/zoom gestures.
+     * Writes "fps: " followed by the frame rate, to one decimal place, into
+     * a character buffer without creating any strings.
+     *
+     * @param buffer the buffer to write into
+     * @param rate the frame rate
+     * @return the number of characters written
      */
-    public void enableScaleGestures()
+    private static int formatFrameRate(char[] buffer, double rate)
     {
-        // FIXME re-enable
+        int length = 0;
+        buffer[length++] = 'f';
+        buffer[length++] = 'p';
+        buffer[length++] = 's';
+        buffer[length++] = ':';
+        buffer[length++] = ' ';
+
+        long tenths = Math.round(Math.max(0, Math.min(rate, 99999)) * 10);
+        long whole = tenths / 10;
+
+        // Write the digits of the whole part in reverse, then flip them.
+        int start = length;
+        do
+        {
+            buffer[length++] = (char) ('0' + whole % 10);
+            whole /= 10;
+        }
+        while (whole > 0);
 
-        //ScaleGestureDetector detector = new ScaleGestureDetector(
-        //    getContext(), new ScaleGestureListener());
-        //gestureDetectors.add(detector);
+        for (int i = start, j = length - 1; i < j; i++, j--)
+        {
+            char temp = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = temp;
+        }
+
+        buffer[length++] = '.';
+        buffer[length++] = (char) ('0' + tenths % 10);
+
+        return length;
     }
 
 
     // ----------------------------------------------------------
     /**
-     * Turn on support for rotation gestures.
+     * Draw this view's shapes on the canvas.
+     *
+     * @param repaintBounds the area being redrawn, in the view's coordinate
+     *     system; only shapes that overlap it are drawn. If null, every shape
+     *     is drawn.
+     */
+    protected void drawContents(RectF repaintBounds)
+    {
+        Canvas canvas = drawing.canvas;
+
+        canvas.save();
+        coordinateSystem.applyTransform(canvas);
+
+        // Only record what to draw while the world is locked; the drawing
+        // itself happens afterward, so that other threads can change the
+        // field in the meantime.
+        SceneSnapshot scene = drawList;
+        recordScene(shapeField, repaintBounds, scene);
+        renderStaleLayers(shapeField);
+        drawScene(drawing, scene);
+        scene.clear();
+
+        canvas.restore();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Records which shapes to draw in the specified area, in drawing order,
+     * and where to draw each one, with cached layers in place of the shapes
+     * they hold. The layers themselves are drawn later, by
+     * {@link #renderStaleLayers(ShapeField)}, on the thread that draws the
+     * scene.
+     *
+     * @param field the field whose shapes are being drawn
+     * @param bounds the area being drawn, in the view's coordinate system, or
+     *     null for the entire view
+     * @param scene the (empty) snapshot to record into
+     */
+    private void recordScene(ShapeField field, RectF bounds,
+            SceneSnapshot scene)
+    {
+        long step = field.getStepCount();
+        float alpha = interpolationAlpha;
+        float[] xform = drawTransform;
+
+        synchronized (field.getB2World())
+        {
+            List<Shape> shapes = collectShapesToDraw(field, bounds);
+            CachedLayer[] layers = invalidateMovedLayers(shapes, step);
+            CachedLayer lastLayer = null;
+
+            for (int i = 0; i < shapes.size(); i++)
+            {
+                Shape shape = shapes.get(i);
+                CachedLayer layer =
+                    cachedLayerFor(layers, shape.getZIndex());
+
+                if (layer == null)
+                {
+                    resolveDrawTransform(shape, step, alpha, xform);
+                    scene.add(shape, xform);
+                }
+                else if (layer != lastLayer)
+                {
+                    // Draw the whole layer where its first shape would be
+                    // drawn, and skip the rest of its shapes.
+                    scene.addLayer(layer);
+                    lastLayer = layer;
+                }
+            }
+
+            shapes.clear();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Draws a recorded scene on a canvas that the coordinate system's
+     * transform has been applied to (after a call to {@code save()}).
+     *
+     * @param target the drawing to draw on
+     * @param scene the scene to draw
+     */
+    private void drawScene(CanvasDrawing target, SceneSnapshot scene)
+    {
+        for (int i = 0; i < scene.count; i++)
+        {
+            if (scene.shapes[i] != null)
+            {
+                drawShapeAt(target, scene.shapes[i],
+                        scene.xs[i], scene.ys[i], scene.angles[i],
+                        scene.bodyXs[i], scene.bodyYs[i]);
+            }
+            else
+            {
+                drawCachedLayer(target.canvas, scene.layers[i].bitmap);
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Marks the cached layers that hold shapes moved by the most recent
+     * physics step as out of date, since those shapes do not repaint
+     * themselves. Must be called with the world locked.
+     *
+     * @param shapes the shapes about to be drawn
+     * @param step the index of the most recent physics step
+     * @return the cached layers
+     */
+    private CachedLayer[] invalidateMovedLayers(List<Shape> shapes, long step)
+    {
+        CachedLayer[] layers = cachedLayers;
+
+        if (layers.length == 0)
+        {
+            return layers;
+        }
+
+        for (int i = 0; i < shapes.size(); i++)
+        {
+            Shape shape = shapes.get(i);
+
+            if (shape.hasPreviousTransform(step))
+            {
+                CachedLayer layer =
+                    cachedLayerFor(layers, shape.getZIndex());
+                if (layer != null)
+                {
+                    layer.invalidate();
+                }
+            }
+        }
+
+        return layers;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Draws any cached layers that are out of date. Must be called with the
+     * surface holder locked, like all other drawing, so that only one thread
+     * draws shapes at a time; the world is locked here, only if there is
+     * something to draw.
+     *
+     * @param field the field whose shapes are being drawn
+     */
+    private void renderStaleLayers(ShapeField field)
+    {
+        CachedLayer[] layers = cachedLayers;
+        int width = getWidth();
+        int height = getHeight();
+        int version = coordinateSystem.getVersion();
+        boolean stale = false;
+
+        for (CachedLayer layer : layers)
+        {
+            stale |= layer.isStale(width, height, version);
+        }
+
+        if (!stale)
+        {
+            return;
+        }
+
+        synchronized (field.getB2World())
+        {
+            long step = field.getStepCount();
+
+            for (CachedLayer layer : layers)
+            {
+                if (layer.isStale(width, height, version))
+                {
+                    renderCachedLayer(field, layer, step, version);
+                }
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Draws the shapes in a cached layer into a bitmap covering the entire
+     * view in device coordinates. The layer's bitmap is cleared and reused,
+     * since it is only drawn on the thread that draws it into, and is only
+     * reallocated when the view changes size. Must be called with the
+     * surface holder and the world locked.
+     *
+     * @param field the field whose shapes are being drawn
+     * @param layer the layer to draw
+     * @param step the index of the most recent physics step
+     * @param version the version of the coordinate system
+     */
+    private void renderCachedLayer(
+            ShapeField field, CachedLayer layer, long step, int version)
+    {
+        int width = getWidth();
+        int height = getHeight();
+
+        if (width <= 0 || height <= 0)
+        {
+            return;
+        }
+
+        // Read the change count first, so that changes made while drawing
+        // leave the layer out of date.
+        int changeCount = layer.changeCount;
+
+        Bitmap bitmap = layer.bitmap;
+
+        if (bitmap == null
+                || bitmap.getWidth() != width || bitmap.getHeight() != height)
+        {
+            bitmap =
+                Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        else
+        {
+            // Clear it to transparent.
+            bitmap.eraseColor(0);
+        }
+
+        Canvas canvas = new Canvas(bitmap);
+        coordinateSystem.applyTransform(canvas);
+        layerDrawing.canvas = canvas;
+
+        RectF query = layerQuery;
+        query.set(0, 0, width, height);
+        query.inset(-CULLING_MARGIN, -CULLING_MARGIN);
+        coordinateSystem.deviceToLocal(query);
+
+        List<Shape> shapes = layerShapes;
+        field.collectShapesToDraw(query, shapes);
+
+        float[] xform = layerTransform;
+
+        for (int i = 0; i < shapes.size(); i++)
+        {
+            Shape shape = shapes.get(i);
+            int zIndex = shape.getZIndex();
+
+            if (zIndex >= layer.minZIndex && zIndex <= layer.maxZIndex
+                    && shape.getParentView() != null && shape.isVisible()
+                    && shape.getBounds() != null)
+            {
+                shape.updateDrawnBounds();
+                resolveDrawTransform(shape, step, 1, xform);
+                drawShapeAt(layerDrawing, shape,
+                        xform[0], xform[1], xform[2], xform[3], xform[4]);
+            }
+        }
+
+        shapes.clear();
+        layerDrawing.canvas = null;
+
+        layer.bitmap = bitmap;
+        layer.renderedChangeCount = changeCount;
+        layer.renderedVersion = version;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Draws a cached layer's bitmap on a canvas that the coordinate system's
+     * transform has been applied to (after a call to {@code save()}).
+     *
+     * @param canvas the canvas
+     * @param bitmap the layer's bitmap, or null if it has not been drawn
+     */
+    private void drawCachedLayer(Canvas canvas, Bitmap bitmap)
+    {
+        if (bitmap != null)
+        {
+            // The bitmap is already in device coordinates.
+            canvas.restore();
+            canvas.drawBitmap(bitmap, 0, 0, null);
+            canvas.save();
+            coordinateSystem.applyTransform(canvas);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Finds the cached layer that holds shapes with the specified z-index.
+     *
+     * @param layers the cached layers
+     * @param zIndex the z-index
+     * @return the layer, or null if shapes with that z-index are not cached
+     */
+    private static CachedLayer cachedLayerFor(
+            CachedLayer[] layers, int zIndex)
+    {
+        for (CachedLayer layer : layers)
+        {
+            if (zIndex >= layer.minZIndex && zIndex <= layer.maxZIndex)
+            {
+                return layer;
+            }
+        }
+
+        return null;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * <p>
+     * Determines which shapes need to be drawn in the specified area, in
+     * drawing order. Must be called with the world locked.
+     * </p><p>
+     * Rather than testing every shape in the field, this asks the field for
+     * the shapes near the area (using the physics engine's broad-phase), and
+     * then tests only those against the area that each one covers when
+     * drawn. The broad-phase only knows the shapes' physical extents, which
+     * can be smaller than what is drawn (for example, a thick outline), so
+     * the area is enlarged by a margin of a few dozen pixels for the query.
+     * </p>
+     *
+     * @param field the field whose shapes are being drawn
+     * @param bounds the area being drawn, in the view's coordinate system, or
+     *     null for the entire view
+     * @return the shapes to draw; this list is reused, so the caller should
+     *     clear it when finished
+     */
+    private List<Shape> collectShapesToDraw(ShapeField field, RectF bounds)
+    {
+        RectF visible = cullingArea;
+        RectF query = cullingQuery;
+
+        if (bounds != null)
+        {
+            visible.set(bounds);
+            query.set(bounds);
+            coordinateSystem.localToDevice(query);
+        }
+        else
+        {
+            query.set(0, 0, getWidth(), getHeight());
+            visible.set(query);
+            coordinateSystem.deviceToLocal(visible);
+        }
+
+        query.inset(-CULLING_MARGIN, -CULLING_MARGIN);
+        coordinateSystem.deviceToLocal(query);
+
+        List<Shape> shapes = shapesToDraw;
+        field.collectShapesToDraw(query, shapes);
+
+        RectF area = drawArea;
+        int count = 0;
+
+        for (int i = 0; i < shapes.size(); i++)
+        {
+            Shape shape = shapes.get(i);
+
+            if (shape.getParentView() != null && shape.isVisible()
+                    && shape.getBounds() != null)
+            {
+                shape.updateDrawnBounds();
+
+                if (shape.getDrawnBounds(area)
+                        && RectF.intersects(area, visible))
+                {
+                    shapes.set(count++, shape);
+                }
+            }
+        }
+
+        // Drop the shapes that were culled, keeping the rest in order.
+        for (int i = shapes.size() - 1; i >= count; i--)
+        {
+            shapes.remove(i);
+        }
+
+        return shapes;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Computes where a shape should be drawn: its body's current transform,
+     * or, if it moved during the most recent physics step, the transform
+     * interpolated between its previous and current ones.
+     *
+     * @param shape the shape
+     * @param step the index of the most recent physics step
+     * @param alpha how far to interpolate between the previous (0) and
+     *     current (1) transforms
+     * @param out a five-element array that receives the x-coordinate,
+     *     y-coordinate, and angle (in radians) to draw the shape at, followed
+     *     by the x- and y-coordinates of its body's current position
+     */
+    private static void resolveDrawTransform(
+            Shape shape, long step, float alpha, float[] out)
+    {
+        Body body = shape.getB2Body();
+        Vec2 position;
+        float angle;
+
+        if (body != null)
+        {
+            position = body.getPosition();
+            angle = body.getAngle();
+        }
+        else
+        {
+            BodyDef bodyDef = shape.getB2BodyDef();
+            position = bodyDef.position;
+            angle = bodyDef.angle;
+        }
+
+        out[0] = position.x;
+        out[1] = position.y;
+        out[2] = angle;
+        out[3] = position.x;
+        out[4] = position.y;
+
+        if (alpha < 1 && shape.hasPreviousTransform(step))
+        {
+            float prevX = shape.getPreviousX();
+            float prevY = shape.getPreviousY();
+            float prevAngle = shape.getPreviousAngle();
+
+            out[0] = prevX + (out[0] - prevX) * alpha;
+            out[1] = prevY + (out[1] - prevY) * alpha;
+            out[2] = prevAngle + (out[2] - prevAngle) * alpha;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Draws a single shape so that its centroid is at the specified location
+     * and it is rotated by the specified angle. The body position that was
+     * recorded along with that location is handed to the shape through the
+     * drawing, and the shape draws itself there rather than wherever its
+     * body is by now; the canvas is displaced by the difference between the
+     * two, so the shape is drawn in the right place even if the physics
+     * thread (or another thread) moves it meanwhile.
+     *
+     * @param target the drawing to draw on
+     * @param shape the shape to draw
+     * @param x the x-coordinate where the shape's centroid should be drawn
+     * @param y the y-coordinate where the shape's centroid should be drawn
+     * @param angle the rotation of the shape, in radians
+     * @param bodyX the x-coordinate of the shape's body when the location
+     *     was recorded
+     * @param bodyY the y-coordinate of the shape's body when the location
+     *     was recorded
+     */
+    private static void drawShapeAt(CanvasDrawing target, Shape shape,
+            float x, float y, float angle, float bodyX, float bodyY)
+    {
+        Canvas canvas = target.canvas;
+        canvas.save();
+
+        canvas.translate(x - bodyX, y - bodyY);
+        canvas.rotate((float) Math.toDegrees(angle), bodyX, bodyY);
+
+        target.shapePosition.set(bodyX, bodyY);
+        target.hasShapePosition = true;
+
+        try
+        {
+            shape.draw(target);
+        }
+        finally
+        {
+            target.hasShapePosition = false;
+            canvas.restore();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    @Override
+    public boolean dispatchTouchEvent(MotionEvent e)
+    {
+        internalSetAutoRepaintForThread(false);
+        boolean result = super.dispatchTouchEvent(e);
+        internalSetAutoRepaintForThread(true);
+        requestRepaint();
+
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Turn on support for pinching/zoom gestures.
+     */
+    public void enableScaleGestures()
+    {
+        // FIXME re-enable
+
+        //ScaleGestureDetector detector = new ScaleGestureDetector(
+        //    getContext(), new ScaleGestureListener());
+        //gestureDetectors.add(detector);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Turn on support for rotation gestures.
      */
     public void enableRotateGestures()
     {
@@ -794,6 +1777,11 @@ public class ShapeView
     {
         if (physicsThread == null)
         {
+            if (renderThreadEnabled)
+            {
+                startRenderThread();
+            }
+
             physicsThread = new PhysicsThread();
             physicsThread.start();
         }
@@ -810,6 +1798,88 @@ public class ShapeView
         {
             physicsThread.cancel();
             physicsThread = null;
+
+            // Operations posted before the thread stopped would otherwise
+            // wait until the simulation starts again.
+            ShapeField field = shapeField;
+            synchronized (field.getB2World())
+            {
+                field.runPostedOperations();
+            }
+        }
+
+        stopRenderThread();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether the physics thread is running, and so
+     * will run the operations posted to the shape field.
+     *
+     * @return true if the physics simulation is running
+     */
+    /*package*/ boolean isSimulationRunning()
+    {
+        return physicsThread != null;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Creates the render thread, if it is not already running.
+     */
+    private synchronized void startRenderThread()
+    {
+        if (renderThread == null)
+        {
+            renderThread = new RenderThread();
+            renderThread.start();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Stops the render thread, if it is running. The physics thread goes
+     * back to drawing frames itself.
+     */
+    private synchronized void stopRenderThread()
+    {
+        if (renderThread != null)
+        {
+            renderThread.cancel();
+            renderThread = null;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Records the current state of the shape field into the back snapshot
+     * and hands it off to the render thread. Called on the physics thread in
+     * place of drawing the frame directly.
+     */
+    private void publishSnapshot()
+    {
+        SceneSnapshot snapshot;
+
+        synchronized (snapshotLock)
+        {
+            // Once the pending flag is cleared, the render thread will not
+            // swap buffers, so the back snapshot belongs to us until we set
+            // it again.
+            snapshotPending = false;
+            snapshot = backSnapshot;
+        }
+
+        snapshot.clear();
+        recordScene(shapeField, null, snapshot);
+
+        synchronized (snapshotLock)
+        {
+            snapshotPending = true;
+            snapshotLock.notifyAll();
         }
     }
 
@@ -821,6 +1891,10 @@ public class ShapeView
     {
         public Canvas canvas;
 
+        // The recorded position of the shape being drawn, if any
+        private final PointF shapePosition = new PointF();
+        private boolean hasShapePosition;
+
 
         // ----------------------------------------------------------
         @Override
@@ -853,6 +1927,14 @@ public class ShapeView
             // TODO
             return 0;
         }
+
+
+        // ----------------------------------------------------------
+        @Override
+        public PointF getShapePosition()
+        {
+            return hasShapePosition ? shapePosition : null;
+        }
     }
 
 
@@ -860,7 +1942,9 @@ public class ShapeView
     private class PhysicsThread extends Thread
     {
         private boolean running;
-        private static final int FRAME_RATE = 30;
+
+        private static final int VELOCITY_ITERATIONS = 10;
+        private static final int POSITION_ITERATIONS = 8;
 
         public PhysicsThread()
         {
@@ -885,33 +1969,373 @@ public class ShapeView
         {
             lastFrameStart = SystemClock.elapsedRealtime();
 
+            long previousTime = System.nanoTime();
+            double accumulator = 0;
+            boolean wasMoving = false;
+            int imageGeneration = Image.getContentGeneration();
+            Rect region = new Rect();
+
             while (isRunning())
             {
-                long startTime = SystemClock.elapsedRealtime();
+                long frameStart = System.nanoTime();
+                double stepLength = 1.0 / simulationRate;
+
+                accumulator += Math.min(
+                        (frameStart - previousTime) / 1e9, MAX_FRAME_TIME);
+                previousTime = frameStart;
 
-                int velIters = 10;
-                int posIters = 8;
+                // Consume the elapsed time in fixed-size steps, so that the
+                // simulation does not depend on how fast frames are drawn.
 
-                World world = shapeField.getB2World();
-                synchronized (world)
+                int maxSteps = maxStepsPerFrame;
+                int steps = 0;
+
+                while (accumulator >= stepLength && steps < maxSteps)
+                {
+                    step((float) stepLength);
+                    accumulator -= stepLength;
+                    steps++;
+                }
+
+                if (accumulator >= stepLength)
                 {
-                    world.step(1f / FRAME_RATE, velIters, posIters);
+                    // We hit the step cap, so drop the time that we could not
+                    // simulate instead of trying to make it up later.
+                    accumulator %= stepLength;
                 }
 
-                animationManager.step(startTime);
+                // Once everything has come to rest, draw the final positions
+                // rather than interpolating toward them.
+                boolean moving = shapeField.hasMovingShapes();
 
-                shapeField.runDeferredOperations();
-                shapeField.notifySleepRecipients();
-                doRepaint(null);
+                interpolationAlpha = (interpolationEnabled && moving)
+                        ? (float) (accumulator / stepLength) : 1;
+
+                ShapeAnimationManager animations = animationManager;
+                if (animations != null)
+                {
+                    animations.step(SystemClock.elapsedRealtime());
+                }
 
-                long timeUsed = SystemClock.elapsedRealtime() - startTime;
-                long remainingTime = 1000 / FRAME_RATE - timeUsed;
+                // Images that finished decoding in the background since the
+                // last frame were drawn as placeholders, and images whose
+                // pixels were changed are out of date, so redraw them.
+                int generation = Image.getContentGeneration();
+                if (generation != imageGeneration)
+                {
+                    imageGeneration = generation;
+
+                    for (CachedLayer layer : cachedLayers)
+                    {
+                        layer.invalidate();
+                    }
+
+                    invalidateRegion(null);
+                    requestRepaint();
+                }
+
+                // Moving shapes can be anywhere, so redraw everything while
+                // they move and once more after they stop. Otherwise, only
+                // redraw the areas that have changed, if any.
+
+                if (takeRepaintRegion(moving || wasMoving, region))
+                {
+                    if (renderThread != null)
+                    {
+                        publishSnapshot();
+                    }
+                    else
+                    {
+                        doRepaint(region);
+                    }
+                }
+
+                wasMoving = moving;
+
+                long timeUsed = (System.nanoTime() - frameStart) / 1000000;
+                long remainingTime = 1000 / frameRate - timeUsed;
 
                 if (remainingTime > 0)
                 {
-                    //SystemClock.sleep(remainingTime);
+                    SystemClock.sleep(remainingTime);
+                }
+            }
+        }
+
+
+        // ----------------------------------------------------------
+        private void step(float stepLength)
+        {
+            ShapeField field = shapeField;
+            World world = field.getB2World();
+
+            synchronized (world)
+            {
+                field.runPostedOperations();
+                field.savePreviousTransforms();
+                world.step(stepLength,
+                        VELOCITY_ITERATIONS, POSITION_ITERATIONS);
+
+                // Changes requested while the world was locked by the step
+                // can be made now.
+                field.runDeferredOperations();
+            }
+
+            // Collision and sleep handlers are called once the step is
+            // over, with the world unlocked.
+            field.dispatchBufferedContacts();
+            field.notifySleepRecipients();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Draws frames from the snapshots published by the physics thread, without
+     * taking the physical world's lock.
+     */
+    private class RenderThread extends Thread
+    {
+        private boolean running;
+        private CanvasDrawing renderDrawing;
+
+
+        public RenderThread()
+        {
+            running = true;
+            renderDrawing = new CanvasDrawing();
+        }
+
+
+        public void cancel()
+        {
+            synchronized (snapshotLock)
+            {
+                running = false;
+                snapshotLock.notifyAll();
+            }
+        }
+
+
+        @Override
+        public void run()
+        {
+            while (true)
+            {
+                SceneSnapshot snapshot;
+
+                synchronized (snapshotLock)
+                {
+                    while (running && !snapshotPending)
+                    {
+                        try
+                        {
+                            snapshotLock.wait();
+                        }
+                        catch (InterruptedException e)
+                        {
+                            // Do nothing.
+                        }
+                    }
+
+                    if (!running)
+                    {
+                        return;
+                    }
+
+                    snapshot = backSnapshot;
+                    backSnapshot = frontSnapshot;
+                    frontSnapshot = snapshot;
+                    snapshotPending = false;
                 }
+
+                drawSnapshot(snapshot);
+            }
+        }
+
+
+        // ----------------------------------------------------------
+        private void drawSnapshot(SceneSnapshot snapshot)
+        {
+            if (!surfaceCreated)
+            {
+                return;
+            }
+
+            Canvas canvas = null;
+
+            try
+            {
+                canvas = getHolder().lockCanvas(null);
+
+                if (canvas != null)
+                {
+                    synchronized (getHolder())
+                    {
+                        renderDrawing.canvas = canvas;
+
+                        drawBackground(canvas);
+
+                        canvas.save();
+                        coordinateSystem.applyTransform(canvas);
+
+                        // Cached layers are drawn here, rather than when the
+                        // snapshot is recorded, so that shapes are never
+                        // drawn on two threads at once.
+                        renderStaleLayers(shapeField);
+                        drawScene(renderDrawing, snapshot);
+
+                        canvas.restore();
+
+                        drawFrameRate(canvas);
+                    }
+                }
+            }
+            finally
+            {
+                if (canvas != null)
+                {
+                    getHolder().unlockCanvasAndPost(canvas);
+                }
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * An immutable-once-published record of what to draw in one frame: the
+     * visible shapes in drawing order, the location and rotation at which to
+     * draw each one, and where its body was when it was recorded, with
+     * cached layers in place of the shapes they hold. The arrays
+     * are reused from frame to frame so that publishing a snapshot does not
+     * allocate once they are large enough.
+     */
+    private static class SceneSnapshot
+    {
+        private int count;
+        private Shape[] shapes = new Shape[16];
+        private CachedLayer[] layers = new CachedLayer[16];
+        private float[] xs = new float[16];
+        private float[] ys = new float[16];
+        private float[] angles = new float[16];
+        private float[] bodyXs = new float[16];
+        private float[] bodyYs = new float[16];
+
+
+        // ----------------------------------------------------------
+        public void clear()
+        {
+            // Drop the references so that removed shapes can be collected.
+            for (int i = 0; i < count; i++)
+            {
+                shapes[i] = null;
+                layers[i] = null;
             }
+
+            count = 0;
+        }
+
+
+        // ----------------------------------------------------------
+        public void add(Shape shape, float[] transform)
+        {
+            ensureRoom();
+            shapes[count] = shape;
+            xs[count] = transform[0];
+            ys[count] = transform[1];
+            angles[count] = transform[2];
+            bodyXs[count] = transform[3];
+            bodyYs[count] = transform[4];
+            count++;
+        }
+
+
+        // ----------------------------------------------------------
+        public void addLayer(CachedLayer layer)
+        {
+            ensureRoom();
+            layers[count] = layer;
+            count++;
+        }
+
+
+        // ----------------------------------------------------------
+        private void ensureRoom()
+        {
+            if (count == shapes.length)
+            {
+                int capacity = count * 2;
+                Shape[] newShapes = new Shape[capacity];
+                System.arraycopy(shapes, 0, newShapes, 0, count);
+                shapes = newShapes;
+                CachedLayer[] newLayers = new CachedLayer[capacity];
+                System.arraycopy(layers, 0, newLayers, 0, count);
+                layers = newLayers;
+                xs = grow(xs, capacity);
+                ys = grow(ys, capacity);
+                angles = grow(angles, capacity);
+                bodyXs = grow(bodyXs, capacity);
+                bodyYs = grow(bodyYs, capacity);
+            }
+        }
+
+
+        // ----------------------------------------------------------
+        private static float[] grow(float[] array, int capacity)
+        {
+            float[] newArray = new float[capacity];
+            System.arraycopy(array, 0, newArray, 0, array.length);
+            return newArray;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * A range of z-indices whose shapes are drawn from a cached bitmap, and
+     * the bitmap they were last drawn into.
+     */
+    private static class CachedLayer
+    {
+        private final int minZIndex;
+        private final int maxZIndex;
+
+        // Written only while the surface holder is locked, by the thread
+        // that is drawing the frame
+        private volatile Bitmap bitmap;
+        private int renderedChangeCount;
+        private int renderedVersion;
+
+        // Incremented on any thread when a shape in the layer changes
+        private volatile int changeCount;
+
+
+        // ----------------------------------------------------------
+        public CachedLayer(int minZIndex, int maxZIndex)
+        {
+            this.minZIndex = minZIndex;
+            this.maxZIndex = maxZIndex;
+        }
+
+
+        // ----------------------------------------------------------
+        public void invalidate()
+        {
+            changeCount++;
+        }
+
+
+        // ----------------------------------------------------------
+        public boolean isStale(int width, int height, int version)
+        {
+            Bitmap current = bitmap;
+
+            return current == null
+                || current.getWidth() != width
+                || current.getHeight() != height
+                || renderedVersion != version
+                || renderedChangeCount != changeCount;
         }
     }
 
@@ -19,6 +19,7 @@ package sofia.graphics;
 import sofia.graphics.internal.animation.StrokeWidthTransformer;
 
 import android.graphics.Paint;
+import android.graphics.RectF;
 
 //-------------------------------------------------------------------------
 /**
@@ -88,10 +89,34 @@ public abstract class StrokedShape
     public void setStrokeWidth(double newStrokeWidth)
     {
         this.strokeWidth = newStrokeWidth;
+        invalidatePaint();
         conditionallyRepaint();
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Enlarges the repaint area to include the part of the stroke that lies
+     * outside the shape's bounds. Mitered corners can extend up to twice the
+     * stroke width past the outline, so the area is enlarged by that much.
+     *
+     * @param result the rectangle that receives the area
+     * @return true if the area was computed, otherwise false
+     */
+    @Override
+    protected boolean computeRepaintBounds(RectF result)
+    {
+        if (!super.computeRepaintBounds(result))
+        {
+            return false;
+        }
+
+        float outset = (float) (strokeWidth * 2);
+        result.inset(-outset, -outset);
+        return true;
+    }
+
+
     // ----------------------------------------------------------
     /**
      * Gets the stroke's cap, which determines how to treat the beginning and
@@ -115,6 +140,7 @@ public abstract class StrokedShape
     public void setStrokeCap(Paint.Cap newStrokeCap)
     {
         this.strokeCap = newStrokeCap;
+        invalidatePaint();
         conditionallyRepaint();
     }
 
@@ -140,6 +166,7 @@ public abstract class StrokedShape
     public void setStrokeJoin(Paint.Join newStrokeJoin)
     {
         this.strokeJoin = newStrokeJoin;
+        invalidatePaint();
         conditionallyRepaint();
     }
 
@@ -167,6 +194,7 @@ public abstract class StrokedShape
     public void setStrokeMiter(double newStrokeMiter)
     {
         this.strokeMiter = newStrokeMiter;
+        invalidatePaint();
         conditionallyRepaint();
     }
 
@@ -175,9 +203,9 @@ public abstract class StrokedShape
 
     // ----------------------------------------------------------
     @Override
-    protected Paint getPaint()
+    protected void configurePaint(Paint paint)
     {
-        Paint paint = super.getPaint();
+        super.configurePaint(paint);
         paint.setStrokeWidth((float) strokeWidth);
 
         if (strokeCap != null)
@@ -191,8 +219,6 @@ public abstract class StrokedShape
         }
 
         paint.setStrokeMiter((float) strokeMiter);
-
-        return paint;
     }
 
 
@@ -16,11 +16,13 @@
 
 package sofia.graphics;
 
+import sofia.graphics.internal.BitmapCache;
 import sofia.graphics.internal.animation.TypeSizeTransformer;
 
 import android.graphics.Paint.Style;
 import android.content.Context;
 import android.content.res.Resources;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.PointF;
@@ -29,6 +31,9 @@ import android.graphics.RectF;
 import android.graphics.Typeface;
 import android.util.TypedValue;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import org.jbox2d.collision.shapes.PolygonShape;
 
 //-------------------------------------------------------------------------
@@ -47,6 +52,46 @@ public class TextShape extends Shape
     private float typeSize;
     private boolean filled;
 
+    // The measurements of the text as it was last drawn; they are reused
+    // until the text or the typeface, size, or style it is drawn with
+    // changes.
+    private volatile TextMetrics metrics;
+
+    // When prerendered, the text is drawn once into a bitmap that holds only
+    // the coverage of its glyphs, and the bitmap is drawn (tinted with the
+    // shape's color) on each frame; these are the bitmap last drawn and what
+    // it was rendered from
+    private boolean prerendered;
+    private Bitmap renderedText;
+    private TextMetrics renderedMetrics;
+    private float renderedScale;
+    private final RectF renderTarget = new RectF();
+
+    // Measurements shared by all text shapes, so that strings that are shown
+    // over and over (such as scores and timers) are only measured once
+    private static final int SHARED_METRICS_LIMIT = 256;
+    private static final Map<TextMetrics.Key, TextMetrics> sharedMetrics =
+        new LinkedHashMap<TextMetrics.Key, TextMetrics>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<TextMetrics.Key, TextMetrics> eldest)
+            {
+                return size() > SHARED_METRICS_LIMIT;
+            }
+        };
+
+    // Prerendered text, shared by all text shapes that show the same string
+    // in the same typeface, size, and style
+    private static final BitmapCache renderedTextCache =
+        new BitmapCache(Runtime.getRuntime().maxMemory() / 32);
+
+    // Empty pixels left around prerendered text, so that antialiased edges
+    // are not cut off
+    private static final int RENDER_PADDING = 1;
+
 
     //~ Constructors ..........................................................
 
@@ -106,17 +151,12 @@ public class TextShape extends Shape
     // ----------------------------------------------------------
     public RectF getBounds()
     {
-        Rect textBounds = new Rect();
-        Paint paint = getPaint();
-        paint.getTextBounds(text, 0, text.length(), textBounds);
+        TextMetrics textMetrics = getMetrics();
 
         PointF pt = pointAndAnchor.getPoint();
-        RectF bounds = new RectF(
-                pt.x + textBounds.left, pt.y + textBounds.top,
-                pt.x + textBounds.right, pt.y + textBounds.bottom);
-        pointAndAnchor.getAnchor().getPoint(bounds);
-
-        return bounds;
+        return new RectF(
+                pt.x + textMetrics.left, pt.y + textMetrics.top,
+                pt.x + textMetrics.right, pt.y + textMetrics.bottom);
     }
 
 
@@ -193,6 +233,7 @@ public class TextShape extends Shape
     public void setTypeface(Typeface typeface)
     {
         this.typeface = typeface;
+        invalidatePaint();
         conditionallyRepaint();
     }
 
@@ -314,6 +355,7 @@ public class TextShape extends Shape
 
         this.typeface = newTypeface;
         this.typeSize = textSize;
+        invalidatePaint();
         conditionallyRepaint();
     }
 
@@ -344,6 +386,49 @@ public class TextShape extends Shape
     public void setTypeSize(float typeSize)
     {
         this.typeSize = typeSize;
+        invalidatePaint();
+        conditionallyRepaint();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether this shape draws its text from a
+     * prerendered bitmap.
+     *
+     * @return true if the text is prerendered, or false if it is drawn
+     *     glyph by glyph on each frame
+     */
+    public boolean isPrerendered()
+    {
+        return prerendered;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sets whether this shape draws its text from a prerendered bitmap. A
+     * prerendered shape renders its text into a bitmap the first time it is
+     * drawn, and afterward simply draws the bitmap, which is much faster
+     * than drawing the text itself. The bitmap is shared by all prerendered
+     * shapes that show the same text in the same typeface, size, and style,
+     * even if their colors differ, and is rendered again whenever any of
+     * those change. This is best suited to text that rarely changes, such as
+     * labels and button captions.
+     *
+     * @param prerendered true to draw the text from a prerendered bitmap,
+     *     or false to draw it glyph by glyph on each frame
+     */
+    public void setPrerendered(boolean prerendered)
+    {
+        this.prerendered = prerendered;
+
+        if (!prerendered)
+        {
+            renderedText = null;
+            renderedMetrics = null;
+        }
+
         conditionallyRepaint();
     }
 
@@ -351,22 +436,22 @@ public class TextShape extends Shape
     // ----------------------------------------------------------
     public float getAscent()
     {
-        return getPaint().ascent();
+        return getMetrics().ascent;
     }
 
 
     // ----------------------------------------------------------
     public float getDescent()
     {
-        return getPaint().descent();
+        return getMetrics().descent;
     }
 
 
     // ----------------------------------------------------------
     @Override
-    protected Paint getPaint()
+    protected void configurePaint(Paint paint)
     {
-        Paint paint = super.getPaint();
+        super.configurePaint(paint);
         paint.setTypeface(getTypeface());
 
         if (typeSize != 0)
@@ -390,7 +475,7 @@ public class TextShape extends Shape
                 TypedValue.COMPLEX_UNIT_PT, pointSize, r.getDisplayMetrics()));
         }
         paint.setAntiAlias(true);
-        return paint;
+        paint.setStyle(filled ? Style.FILL : Style.STROKE);
     }
 
 
@@ -403,18 +488,34 @@ public class TextShape extends Shape
             Canvas canvas = drawing.getCanvas();
 
             Paint paint = getPaint();
+            TextMetrics textMetrics = getMetrics();
+            PointF pt = pointAndAnchor.getPoint();
+
+            float x = pt.x + textMetrics.left;
+            float y = pt.y + textMetrics.top - textMetrics.ascent;
+
+            Bitmap rendered = prerendered
+                ? prerender(drawing.getCoordinateSystem(), textMetrics, paint)
+                : null;
 
-            if(filled)
+            if (rendered != null)
             {
-                paint.setStyle(Style.FILL);
+                // The bitmap holds only the glyphs' coverage, so drawing it
+                // with the text's paint tints it with the text's color.
+                float padding = RENDER_PADDING / renderedScale;
+                renderTarget.left = x + textMetrics.left - padding;
+                renderTarget.top = y + textMetrics.top - padding;
+                renderTarget.right = renderTarget.left
+                    + rendered.getWidth() / renderedScale;
+                renderTarget.bottom = renderTarget.top
+                    + rendered.getHeight() / renderedScale;
+
+                canvas.drawBitmap(rendered, null, renderTarget, paint);
             }
             else
             {
-                paint.setStyle(Style.STROKE);
+                canvas.drawText(text, x, y, paint);
             }
-
-            canvas.drawText(text,
-                getBounds().left, getBounds().top - getAscent(), paint);
         }
     }
 
@@ -438,6 +539,7 @@ public class TextShape extends Shape
     private void setFilled(boolean filled)
     {
         this.filled = filled;
+        invalidatePaint();
     }
 
 
@@ -454,6 +556,242 @@ public class TextShape extends Shape
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Gets the measurements of the text in this shape, measuring it only if
+     * the text or the paint used to draw it has changed since it was last
+     * measured.
+     *
+     * @return the measurements of the text
+     */
+    private TextMetrics getMetrics()
+    {
+        Paint paint = getPaint();
+        String measured = (text == null) ? "" : text;
+
+        TextMetrics result = metrics;
+        if (result == null || !result.key.matches(measured, paint))
+        {
+            result = TextMetrics.of(measured, paint);
+            metrics = result;
+        }
+
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the prerendered bitmap for the text in this shape, rendering it
+     * (or finding it in the shared cache) if the text or its paint has
+     * changed since it was last drawn.
+     *
+     * @param cs the coordinate system the text is drawn in
+     * @param textMetrics the measurements of the text
+     * @param paint the paint the text is drawn with
+     * @return the bitmap, or null if the text is empty
+     */
+    private Bitmap prerender(CoordinateSystem cs, TextMetrics textMetrics,
+        Paint paint)
+    {
+        if (textMetrics.right <= textMetrics.left
+            || textMetrics.bottom <= textMetrics.top)
+        {
+            return null;
+        }
+
+        // Render at the resolution of the device, so that the bitmap is
+        // drawn without being scaled.
+        float scale = Math.max(Math.abs(cs.getDeviceScaleX()),
+            Math.abs(cs.getDeviceScaleY()));
+        if (!(scale > 0) || Float.isInfinite(scale))
+        {
+            scale = 1;
+        }
+
+        Bitmap result = renderedText;
+        if (result != null && !result.isRecycled()
+            && renderedMetrics == textMetrics && renderedScale == scale)
+        {
+            return result;
+        }
+
+        int width = (int) Math.ceil(
+            (textMetrics.right - textMetrics.left) * scale)
+            + RENDER_PADDING * 2;
+        int height = (int) Math.ceil(
+            (textMetrics.bottom - textMetrics.top) * scale)
+            + RENDER_PADDING * 2;
+
+        BitmapCache.Key key = new BitmapCache.Key(BitmapCache.Source.TEXT,
+            textMetrics.key, false, width, height);
+        result = renderedTextCache.get(key);
+
+        if (result == null)
+        {
+            result = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+
+            Paint glyphPaint = new Paint(paint);
+            glyphPaint.setAlpha(255);
+
+            Canvas canvas = new Canvas(result);
+            canvas.translate(RENDER_PADDING, RENDER_PADDING);
+            canvas.scale(scale, scale);
+            canvas.drawText(textMetrics.key.text,
+                -textMetrics.left, -textMetrics.top, glyphPaint);
+
+            renderedTextCache.put(key, result);
+        }
+
+        renderedText = result;
+        renderedMetrics = textMetrics;
+        renderedScale = scale;
+
+        return result;
+    }
+
+
+    //~ Nested classes ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * The measurements of a string drawn with a particular typeface, size,
+     * and style. Instances are immutable, so they can be shared between
+     * shapes and threads.
+     */
+    private static class TextMetrics
+    {
+        private final Key key;
+        private final int left;
+        private final int top;
+        private final int right;
+        private final int bottom;
+        private final float ascent;
+        private final float descent;
+
+
+        // ----------------------------------------------------------
+        private TextMetrics(Key key, Rect bounds, Paint paint)
+        {
+            this.key = key;
+            left = bounds.left;
+            top = bounds.top;
+            right = bounds.right;
+            bottom = bounds.bottom;
+            ascent = paint.ascent();
+            descent = paint.descent();
+        }
+
+
+        // ----------------------------------------------------------
+        /**
+         * Gets the measurements of a string drawn with a paint, from the
+         * shared cache if it has been measured before.
+         *
+         * @param text the string to measure
+         * @param paint the paint it is drawn with
+         * @return the measurements
+         */
+        public static TextMetrics of(String text, Paint paint)
+        {
+            Key key = new Key(text, paint);
+            TextMetrics result;
+
+            synchronized (sharedMetrics)
+            {
+                result = sharedMetrics.get(key);
+            }
+
+            if (result == null)
+            {
+                Rect bounds = new Rect();
+                paint.getTextBounds(text, 0, text.length(), bounds);
+                result = new TextMetrics(key, bounds, paint);
+
+                synchronized (sharedMetrics)
+                {
+                    sharedMetrics.put(key, result);
+                }
+            }
+
+            return result;
+        }
+
+
+        // ----------------------------------------------------------
+        /**
+         * Identifies a string and the paint attributes that affect its
+         * measurements.
+         */
+        private static class Key
+        {
+            private final String text;
+            private final Typeface typeface;
+            private final float textSize;
+            private final Paint.Style style;
+
+
+            // ----------------------------------------------------------
+            public Key(String text, Paint paint)
+            {
+                this.text = text;
+                typeface = paint.getTypeface();
+                textSize = paint.getTextSize();
+                style = paint.getStyle();
+            }
+
+
+            // ----------------------------------------------------------
+            /**
+             * Gets a value indicating whether this key describes a string
+             * drawn with a paint, without creating a new key to compare.
+             *
+             * @param otherText the string
+             * @param paint the paint
+             * @return true if the key describes the string and paint
+             */
+            public boolean matches(String otherText, Paint paint)
+            {
+                return text.equals(otherText)
+                    && typeface == paint.getTypeface()
+                    && textSize == paint.getTextSize()
+                    && style == paint.getStyle();
+            }
+
+
+            // ----------------------------------------------------------
+            @Override
+            public boolean equals(Object other)
+            {
+                if (other instanceof Key)
+                {
+                    Key key = (Key) other;
+                    return text.equals(key.text)
+                        && typeface == key.typeface
+                        && textSize == key.textSize
+                        && style == key.style;
+                }
+                else
+                {
+                    return false;
+                }
+            }
+
+
+            // ----------------------------------------------------------
+            @Override
+            public int hashCode()
+            {
+                int result = text.hashCode();
+                result = 31 * result + System.identityHashCode(typeface);
+                result = 31 * result + Float.floatToIntBits(textSize);
+                result = 31 * result + style.hashCode();
+                return result;
+            }
+        }
+    }
+
+
     //~ Animation support classes .............................................
 
     // ----------------------------------------------------------
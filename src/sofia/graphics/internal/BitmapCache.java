@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2011 Virginia Tech Department of Computer Science
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sofia.graphics.internal;
+
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//-------------------------------------------------------------------------
+/**
+ * <p>
+ * A cache of decoded bitmaps, bounded by the total number of bytes of pixel
+ * data it holds rather than by the number of bitmaps. When a new bitmap
+ * would exceed the budget, the least recently used bitmaps are evicted until
+ * it fits; a bitmap larger than the whole budget is never cached.
+ * </p><p>
+ * Evicted bitmaps are not recycled, since images that were loaded from the
+ * cache may still be using them; they are reclaimed by the garbage collector
+ * once nothing refers to them.
+ * </p>
+ *
+ * @author agent (agent@local)
+ */
+public class BitmapCache
+{
+    //~ Fields ................................................................
+
+    private final LinkedHashMap<Key, Bitmap> bitmaps;
+    private long maxSize;
+    private long size;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new, empty cache.
+     *
+     * @param maxSize the maximum number of bytes of pixel data that the
+     *     cache will hold
+     */
+    public BitmapCache(long maxSize)
+    {
+        bitmaps = new LinkedHashMap<Key, Bitmap>(16, 0.75f, true);
+        setMaxSize(maxSize);
+    }
+
+
+    //~ Public methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the bitmap cached under the specified key, and marks it as the
+     * most recently used bitmap.
+     *
+     * @param key the key
+     * @return the bitmap, or null if no bitmap is cached under that key
+     */
+    public synchronized Bitmap get(Key key)
+    {
+        Bitmap bitmap = bitmaps.get(key);
+
+        if (bitmap != null && bitmap.isRecycled())
+        {
+            // Someone recycled the bitmap behind our back; forget it.
+            bitmaps.remove(key);
+            size -= sizeOf(bitmap);
+            bitmap = null;
+        }
+
+        if (bitmap != null)
+        {
+            hitCount++;
+        }
+        else
+        {
+            missCount++;
+        }
+
+        return bitmap;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Adds a bitmap to the cache, evicting the least recently used bitmaps
+     * as needed to keep the cache within its size limit.
+     *
+     * @param key the key
+     * @param bitmap the bitmap
+     */
+    public synchronized void put(Key key, Bitmap bitmap)
+    {
+        long bitmapSize = sizeOf(bitmap);
+
+        Bitmap previous = bitmaps.remove(key);
+        if (previous != null)
+        {
+            size -= sizeOf(previous);
+        }
+
+        if (bitmapSize <= maxSize)
+        {
+            bitmaps.put(key, bitmap);
+            size += bitmapSize;
+            trimTo(maxSize);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Removes all of the bitmaps from the cache.
+     */
+    public synchronized void clear()
+    {
+        bitmaps.clear();
+        size = 0;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the number of bytes of pixel data held by the cache.
+     *
+     * @return the size of the cache, in bytes
+     */
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the maximum number of bytes of pixel data that the cache will
+     * hold.
+     *
+     * @return the maximum size of the cache, in bytes
+     */
+    public synchronized long getMaxSize()
+    {
+        return maxSize;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sets the maximum number of bytes of pixel data that the cache will
+     * hold, evicting bitmaps immediately if the cache is now too large.
+     *
+     * @param maxSize the maximum size of the cache, in bytes
+     */
+    public synchronized void setMaxSize(long maxSize)
+    {
+        if (maxSize < 0)
+        {
+            throw new IllegalArgumentException(
+                    "The maximum size of the cache cannot be negative.");
+        }
+
+        this.maxSize = maxSize;
+        trimTo(maxSize);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the number of lookups that found a bitmap in the cache.
+     *
+     * @return the number of cache hits
+     */
+    public synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the number of lookups that did not find a bitmap in the cache.
+     *
+     * @return the number of cache misses
+     */
+    public synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the number of bitmaps that have been evicted from the cache to
+     * make room for others.
+     *
+     * @return the number of evictions
+     */
+    public synchronized long getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the number of bytes of pixel data in a bitmap.
+     *
+     * @param bitmap the bitmap
+     * @return the size of the bitmap's pixel data, in bytes
+     */
+    public static long sizeOf(Bitmap bitmap)
+    {
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+
+    //~ Private methods .......................................................
+
+    // ----------------------------------------------------------
+    private void trimTo(long limit)
+    {
+        Iterator<Map.Entry<Key, Bitmap>> it = bitmaps.entrySet().iterator();
+
+        while (size > limit && it.hasNext())
+        {
+            Map.Entry<Key, Bitmap> eldest = it.next();
+            size -= sizeOf(eldest.getValue());
+            it.remove();
+            evictionCount++;
+        }
+    }
+
+
+    //~ Inner classes .........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Identifies a decoded bitmap by where it was loaded from and how it was
+     * decoded, so that bitmaps loaded from different sources (or from the
+     * same source at different sizes) never replace each other.
+     */
+    public static final class Key
+    {
+        private final Source source;
+        private final Object identifier;
+        private final boolean scaleForDpi;
+        private final int width;
+        private final int height;
+
+
+        // ----------------------------------------------------------
+        /**
+         * Creates a new key.
+         *
+         * @param source the kind of source the bitmap was loaded from
+         * @param identifier the resource id, file name, or class that the
+         *     bitmap was loaded from, or a description of the text it was
+         *     rendered from
+         * @param scaleForDpi whether the bitmap was scaled for the device's
+         *     pixel density
+         * @param width the width the bitmap was decoded for, or 0 if it was
+         *     decoded at its natural size
+         * @param height the height the bitmap was decoded for, or 0 if it
+         *     was decoded at its natural size
+         */
+        public Key(Source source, Object identifier, boolean scaleForDpi,
+                int width, int height)
+        {
+            this.source = source;
+            this.identifier = identifier;
+            this.scaleForDpi = scaleForDpi;
+            this.width = width;
+            this.height = height;
+        }
+
+
+        // ----------------------------------------------------------
+        @Override
+        public boolean equals(Object other)
+        {
+            if (this == other)
+            {
+                return true;
+            }
+            else if (other instanceof Key)
+            {
+                Key key = (Key) other;
+                return source == key.source
+                        && identifier.equals(key.identifier)
+                        && scaleForDpi == key.scaleForDpi
+                        && width == key.width
+                        && height == key.height;
+            }
+            else
+            {
+                return false;
+            }
+        }
+
+
+        // ----------------------------------------------------------
+        @Override
+        public int hashCode()
+        {
+            int result = source.hashCode();
+            result = 31 * result + identifier.hashCode();
+            result = 31 * result + (scaleForDpi ? 1 : 0);
+            result = 31 * result + width;
+            result = 31 * result + height;
+            return result;
+        }
+
+
+        // ----------------------------------------------------------
+        @Override
+        public String toString()
+        {
+            return source + ":" + identifier + (scaleForDpi ? "@dpi" : "")
+                    + ((width != 0 || height != 0)
+                        ? "@" + width + "x" + height : "");
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * The kinds of sources that a cached bitmap can be loaded from.
+     */
+    public static enum Source
+    {
+        /** An Android resource id. */
+        RESOURCE,
+
+        /** A file name, searched for like {@code JarResources} does. */
+        FILE,
+
+        /** A class, whose name is used to search for the file. */
+        CLASS,
+
+        /** A string of text, rendered with a particular typeface and size. */
+        TEXT
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2011 Virginia Tech Department of Computer Science
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sofia.graphics.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+//-------------------------------------------------------------------------
+/**
+ * Bulk operations on arrays of packed ARGB pixels, arranged in row-major
+ * order. Large images are processed in bands of rows on several threads at
+ * once; small ones are processed on the calling thread, where the overhead
+ * of handing off the work would outweigh the benefit.
+ *
+ * @author agent (agent@local)
+ */
+public class PixelOps
+{
+    //~ Fields ................................................................
+
+    private static final int THREADS =
+        Runtime.getRuntime().availableProcessors();
+
+    // Images with fewer pixels than this are processed on a single thread
+    private static final int PARALLEL_THRESHOLD = 64 * 1024;
+
+    private static ExecutorService executor;
+
+
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Prevent instantiation.
+     */
+    private PixelOps()
+    {
+        // Nothing to do
+    }
+
+
+    //~ Public methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Processes the rows of an image, splitting them across several threads
+     * if the image is large enough. Each band is processed by exactly one
+     * thread, so tasks that only write to the rows they are given need no
+     * further synchronization.
+     *
+     * @param width the width of the image, in pixels
+     * @param height the height of the image, in pixels
+     * @param task the task to run on each band of rows
+     */
+    public static void forEachRowBand(int width, int height,
+        final RowTask task)
+    {
+        int bands = Math.min(THREADS, height);
+
+        if (bands <= 1 || (long) width * height < PARALLEL_THRESHOLD)
+        {
+            task.run(0, height);
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList<Future<?>>(bands);
+        ExecutorService service = getExecutor();
+
+        for (int i = 0; i < bands; i++)
+        {
+            final int firstRow = (int) ((long) height * i / bands);
+            final int endRow = (int) ((long) height * (i + 1) / bands);
+
+            futures.add(service.submit(new Runnable() {
+                public void run()
+                {
+                    task.run(firstRow, endRow);
+                }
+            }));
+        }
+
+        boolean interrupted = false;
+
+        for (Future<?> future : futures)
+        {
+            while (true)
+            {
+                try
+                {
+                    future.get();
+                    break;
+                }
+                catch (InterruptedException e)
+                {
+                    // Finish waiting, so that the caller never sees a
+                    // partly processed image; restore the flag afterward.
+                    interrupted = true;
+                }
+                catch (ExecutionException e)
+                {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException)
+                    {
+                        throw (RuntimeException) cause;
+                    }
+                    else if (cause instanceof Error)
+                    {
+                        throw (Error) cause;
+                    }
+                    else
+                    {
+                        throw new IllegalStateException(cause);
+                    }
+                }
+            }
+        }
+
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Converts pixels to shades of gray in place, using their luminance and
+     * keeping their alpha.
+     *
+     * @param pixels the pixels
+     * @param width the width of the image, in pixels
+     * @param height the height of the image, in pixels
+     */
+    public static void grayscale(final int[] pixels, final int width,
+        int height)
+    {
+        forEachRowBand(width, height, new RowTask() {
+            public void run(int firstRow, int endRow)
+            {
+                for (int i = firstRow * width; i < endRow * width; i++)
+                {
+                    int argb = pixels[i];
+                    int gray = luminance(argb);
+                    pixels[i] = (argb & 0xff000000)
+                        | (gray << 16) | (gray << 8) | gray;
+                }
+            }
+        });
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Converts pixels to black or white in place, depending on whether their
+     * luminance is below a threshold, keeping their alpha.
+     *
+     * @param pixels the pixels
+     * @param width the width of the image, in pixels
+     * @param height the height of the image, in pixels
+     * @param level the luminance (0-255) at or above which a pixel becomes
+     *     white
+     */
+    public static void threshold(final int[] pixels, final int width,
+        int height, final int level)
+    {
+        forEachRowBand(width, height, new RowTask() {
+            public void run(int firstRow, int endRow)
+            {
+                for (int i = firstRow * width; i < endRow * width; i++)
+                {
+                    int argb = pixels[i];
+                    int rgb = (luminance(argb) >= level) ? 0xffffff : 0;
+                    pixels[i] = (argb & 0xff000000) | rgb;
+                }
+            }
+        });
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Blends pixels in place toward the corresponding pixels of another
+     * image of the same size.
+     *
+     * @param pixels the pixels, which receive the result
+     * @param other the pixels to blend toward
+     * @param width the width of the images, in pixels
+     * @param height the height of the images, in pixels
+     * @param amount how far to blend, from 0 (leave the pixels as they are)
+     *     to 1 (replace them with the other pixels)
+     */
+    public static void blend(final int[] pixels, final int[] other,
+        final int width, int height, float amount)
+    {
+        final int weight = Math.round(Math.max(0, Math.min(1, amount)) * 256);
+
+        forEachRowBand(width, height, new RowTask() {
+            public void run(int firstRow, int endRow)
+            {
+                for (int i = firstRow * width; i < endRow * width; i++)
+                {
+                    int a = pixels[i];
+                    int b = other[i];
+                    int result = 0;
+
+                    for (int shift = 0; shift < 32; shift += 8)
+                    {
+                        int ca = (a >>> shift) & 0xff;
+                        int cb = (b >>> shift) & 0xff;
+                        result |= (ca + (((cb - ca) * weight) >> 8)) << shift;
+                    }
+
+                    pixels[i] = result;
+                }
+            }
+        });
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Convolves the color channels of an image with a square kernel,
+     * keeping each pixel's alpha. Pixels beyond the edges of the image are
+     * treated as copies of the nearest edge pixel.
+     *
+     * @param source the pixels to convolve; not changed
+     * @param result receives the convolved pixels; must not be the same
+     *     array as {@code source}
+     * @param width the width of the image, in pixels
+     * @param height the height of the image, in pixels
+     * @param kernel the kernel weights, in row-major order
+     * @param size the width and height of the kernel, which must be odd
+     */
+    public static void convolve(final int[] source, final int[] result,
+        final int width, final int height, final float[] kernel,
+        final int size)
+    {
+        final int radius = size / 2;
+
+        forEachRowBand(width, height, new RowTask() {
+            public void run(int firstRow, int endRow)
+            {
+                for (int y = firstRow; y < endRow; y++)
+                {
+                    for (int x = 0; x < width; x++)
+                    {
+                        float r = 0;
+                        float g = 0;
+                        float b = 0;
+                        int k = 0;
+
+                        for (int ky = -radius; ky <= radius; ky++)
+                        {
+                            int sy = clamp(y + ky, height - 1);
+                            int row = sy * width;
+
+                            for (int kx = -radius; kx <= radius; kx++)
+                            {
+                                int argb = source[row + clamp(x + kx,
+                                    width - 1)];
+                                float weight = kernel[k++];
+                                r += ((argb >> 16) & 0xff) * weight;
+                                g += ((argb >> 8) & 0xff) * weight;
+                                b += (argb & 0xff) * weight;
+                            }
+                        }
+
+                        int i = y * width + x;
+                        result[i] = (source[i] & 0xff000000)
+                            | (channel(r) << 16) | (channel(g) << 8)
+                            | channel(b);
+                    }
+                }
+            }
+        });
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Computes the luminance of a pixel.
+     *
+     * @param argb the pixel
+     * @return its luminance, from 0 to 255
+     */
+    public static int luminance(int argb)
+    {
+        int r = (argb >> 16) & 0xff;
+        int g = (argb >> 8) & 0xff;
+        int b = argb & 0xff;
+
+        // Integer approximation of 0.299 R + 0.587 G + 0.114 B
+        return (r * 77 + g * 150 + b * 29) >> 8;
+    }
+
+
+    //~ Private methods .......................................................
+
+    // ----------------------------------------------------------
+    private static int clamp(int value, int max)
+    {
+        return (value < 0) ? 0 : ((value > max) ? max : value);
+    }
+
+
+    // ----------------------------------------------------------
+    private static int channel(float value)
+    {
+        int rounded = Math.round(value);
+        return (rounded < 0) ? 0 : ((rounded > 255) ? 255 : rounded);
+    }
+
+
+    // ----------------------------------------------------------
+    private static synchronized ExecutorService getExecutor()
+    {
+        if (executor == null)
+        {
+            executor = Executors.newFixedThreadPool(THREADS,
+                new ThreadFactory() {
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread =
+                            new Thread(runnable, "Sofia pixel worker");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+
+        return executor;
+    }
+
+
+    //~ Inner classes .........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * A task that processes a band of rows of an image.
+     */
+    public interface RowTask
+    {
+        // ----------------------------------------------------------
+        /**
+         * Processes a band of rows.
+         *
+         * @param firstRow the first row in the band
+         * @param endRow the row after the last row in the band
+         */
+        void run(int firstRow, int endRow);
+    }
+}
@@ -18,32 +18,79 @@ package sofia.graphics.internal;
 
 import sofia.graphics.Shape;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.jbox2d.callbacks.ContactFilter;
 import org.jbox2d.dynamics.Fixture;
 
 //-------------------------------------------------------------------------
 /**
- * TODO document
+ * Decides whether two shapes' fixtures can collide. The collision
+ * categories, masks, and groups of the shapes are checked first, by the
+ * physics engine's own filter; only pairs that pass it, and whose classes
+ * both override {@link Shape#canCollideWith(Shape)}, are handed to the
+ * shapes themselves. (If either class does not override it, that shape
+ * accepts every collision, so the answer is already known.)
  *
  * @author Tony Allevato
  */
 public class ShapeContactFilter extends ContactFilter
 {
+    //~ Fields ................................................................
+
+    // Whether each class of shape overrides canCollideWith
+    private static final ConcurrentHashMap<Class<?>, Boolean> overrides =
+        new ConcurrentHashMap<Class<?>, Boolean>();
+
+
     //~ Public methods ........................................................
 
     // ----------------------------------------------------------
     @Override
     public boolean shouldCollide(Fixture fixtureA, Fixture fixtureB)
     {
+        if (!super.shouldCollide(fixtureA, fixtureB))
+        {
+            return false;
+        }
+
         Shape shapeA = (Shape) fixtureA.m_userData;
         Shape shapeB = (Shape) fixtureB.m_userData;
 
-        if (shapeA != null && shapeB != null)
+        if (shapeA != null && shapeB != null
+                && overridesCanCollideWith(shapeA.getClass())
+                && overridesCanCollideWith(shapeB.getClass()))
         {
             return shapeA.canCollideWith(shapeB)
                     || shapeB.canCollideWith(shapeA);
         }
 
-        return super.shouldCollide(fixtureA, fixtureB);
+        return true;
+    }
+
+
+    //~ Private methods .......................................................
+
+    // ----------------------------------------------------------
+    private static boolean overridesCanCollideWith(Class<?> shapeClass)
+    {
+        Boolean result = overrides.get(shapeClass);
+
+        if (result == null)
+        {
+            try
+            {
+                result = shapeClass.getMethod("canCollideWith", Shape.class)
+                        .getDeclaringClass() != Shape.class;
+            }
+            catch (NoSuchMethodException e)
+            {
+                result = false;
+            }
+
+            overrides.put(shapeClass, result);
+        }
+
+        return result;
     }
 }
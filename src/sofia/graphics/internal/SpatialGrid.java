@@ -0,0 +1,772 @@
+/*
+ * Copyright (C) 2011 Virginia Tech Department of Computer Science
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sofia.graphics.internal;
+
+import sofia.graphics.Shape;
+
+import android.graphics.RectF;
+
+import org.jbox2d.common.Vec2;
+import org.jbox2d.dynamics.Body;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+//-------------------------------------------------------------------------
+/**
+ * <p>
+ * A spatial hash grid over the shapes in a shape field, used to answer
+ * proximity queries (shapes within a range of a point, neighbors of a shape,
+ * and shapes along a line) without examining every shape in the field.
+ * </p><p>
+ * Each shape is filed under the grid cell that contains its center. Cells are
+ * hashed into a fixed number of buckets, so the grid is unbounded and only
+ * uses memory for the shapes it holds. Shapes that move or change are marked
+ * dirty, and their entries are brought up to date the next time the grid is
+ * queried; the cost of a query depends on the number of shapes near the
+ * queried area, not on the number of shapes in the field.
+ * </p><p>
+ * The grid has its own lock, so queries do not need the physical world's
+ * lock. Positions are read from each shape's body when its entry is
+ * refreshed, which may be while the world is being stepped on another thread;
+ * the result is then at most one step out of date.
+ * </p>
+ *
+ * @author agent (agent@local)
+ */
+public class SpatialGrid
+{
+    //~ Fields ................................................................
+
+    private final IdentityHashMap<Shape, Entry> entries;
+    private final List<Entry> dirtyEntries;
+    private ArrayList<Entry>[] buckets;
+    private int[] bucketStamps;
+    private int stamp;
+    private float explicitCellSize;
+    private float cellSize;
+    private float maxRadius;
+
+    private static final int MIN_BUCKETS = 64;
+    private static final float DEFAULT_CELL_SIZE = 64;
+    private static final int MIN_CELL = -(1 << 24);
+    private static final int MAX_CELL = 1 << 24;
+
+
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new, empty spatial grid with a cell size that is chosen
+     * automatically from the sizes of the shapes in it.
+     */
+    public SpatialGrid()
+    {
+        entries = new IdentityHashMap<Shape, Entry>();
+        dirtyEntries = new ArrayList<Entry>();
+        cellSize = DEFAULT_CELL_SIZE;
+        allocateBuckets(MIN_BUCKETS);
+    }
+
+
+    //~ Methods ...............................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the size of the grid's cells.
+     *
+     * @return the width and height of each cell, in the view's coordinate
+     *     system
+     */
+    public synchronized float getCellSize()
+    {
+        return cellSize;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sets the size of the grid's cells. Queries are fastest when cells are
+     * about as large as the typical query range or shape. If the size is 0,
+     * the grid chooses a size automatically based on the sizes of the shapes
+     * in it.
+     *
+     * @param size the width and height of each cell, in the view's
+     *     coordinate system, or 0 to choose automatically
+     */
+    public synchronized void setCellSize(float size)
+    {
+        if (size < 0 || Float.isNaN(size) || Float.isInfinite(size))
+        {
+            throw new IllegalArgumentException(
+                    "The cell size must be a finite number that is not "
+                    + "negative. It was: " + size);
+        }
+
+        explicitCellSize = size;
+        rebuild(buckets.length);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Adds a shape to the grid.
+     *
+     * @param shape the shape to add
+     */
+    public synchronized void add(Shape shape)
+    {
+        if (!entries.containsKey(shape))
+        {
+            Entry entry = new Entry(shape);
+            entries.put(shape, entry);
+            entry.refresh();
+            insert(entry);
+
+            if (entries.size() > buckets.length * 2)
+            {
+                rebuild(buckets.length * 4);
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Removes a shape from the grid.
+     *
+     * @param shape the shape to remove
+     */
+    public synchronized void remove(Shape shape)
+    {
+        Entry entry = entries.remove(shape);
+
+        if (entry != null)
+        {
+            buckets[entry.bucket].remove(entry);
+
+            if (entry.dirty)
+            {
+                dirtyEntries.remove(entry);
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Removes all shapes from the grid.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        dirtyEntries.clear();
+        maxRadius = 0;
+        allocateBuckets(MIN_BUCKETS);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Marks a shape as having moved or changed size, so that its entry will
+     * be updated before the next query. This is cheap enough to call every
+     * time a shape changes.
+     *
+     * @param shape the shape that changed
+     */
+    public synchronized void markDirty(Shape shape)
+    {
+        Entry entry = entries.get(shape);
+
+        if (entry != null && !entry.dirty)
+        {
+            entry.dirty = true;
+            dirtyEntries.add(entry);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Marks several shapes as having moved or changed size.
+     *
+     * @param shapes the shapes that changed
+     */
+    public synchronized void markDirty(List<? extends Shape> shapes)
+    {
+        for (int i = 0; i < shapes.size(); i++)
+        {
+            markDirty(shapes.get(i));
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the shapes whose centers are within the specified distance of a
+     * point.
+     *
+     * @param <MyShape> the type of shape to look for
+     * @param x the x-coordinate of the point
+     * @param y the y-coordinate of the point
+     * @param r the distance from the point
+     * @param cls the class of shapes to look for, or null to find shapes of
+     *     any class
+     * @return the shapes that were found
+     */
+    public synchronized <MyShape extends Shape> Set<MyShape> getShapesInRange(
+            final float x, final float y, float r, Class<MyShape> cls)
+    {
+        final float r2 = r * r;
+
+        return searchArea(x - r, y - r, x + r, y + r, cls, new EntryTest() {
+            public boolean accepts(Entry entry)
+            {
+                float dx = entry.x - x;
+                float dy = entry.y - y;
+                return dx * dx + dy * dy <= r2;
+            }
+        });
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the shapes whose centers are near the center of another shape.
+     *
+     * @param <MyShape> the type of shape to look for
+     * @param shape the shape whose neighbors should be found; it is not
+     *     included in the result
+     * @param distance the distance to search along each axis
+     * @param diag true to search a square around the shape (so diagonal
+     *     neighbors are included), or false to search a diamond (where the
+     *     horizontal and vertical distances add up to at most
+     *     {@code distance})
+     * @param cls the class of shapes to look for, or null to find shapes of
+     *     any class
+     * @return the shapes that were found
+     */
+    public synchronized <MyShape extends Shape> Set<MyShape> getNeighbors(
+            final Shape shape, final float distance, final boolean diag,
+            Class<MyShape> cls)
+    {
+        flush();
+
+        final float x;
+        final float y;
+        Entry self = entries.get(shape);
+
+        if (self != null)
+        {
+            x = self.x;
+            y = self.y;
+        }
+        else
+        {
+            Vec2 position = positionOf(shape);
+            x = position.x;
+            y = position.y;
+        }
+
+        return searchArea(x - distance, y - distance,
+                x + distance, y + distance, cls, new EntryTest() {
+            public boolean accepts(Entry entry)
+            {
+                if (entry.shape == shape)
+                {
+                    return false;
+                }
+
+                float dx = Math.abs(entry.x - x);
+                float dy = Math.abs(entry.y - y);
+
+                return diag
+                        ? (dx <= distance && dy <= distance)
+                        : (dx + dy <= distance);
+            }
+        });
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the shapes whose bounds intersect a line segment that starts at a
+     * point and extends in the specified direction.
+     *
+     * @param <MyShape> the type of shape to look for
+     * @param x the x-coordinate of the start of the segment
+     * @param y the y-coordinate of the start of the segment
+     * @param angle the direction of the segment, in degrees clockwise from
+     *     the positive x-axis
+     * @param length the length of the segment
+     * @param cls the class of shapes to look for, or null to find shapes of
+     *     any class
+     * @return the shapes that were found
+     */
+    public synchronized <MyShape extends Shape> Set<MyShape>
+        getShapesInDirection(final float x, final float y, float angle,
+            float length, Class<MyShape> cls)
+    {
+        flush();
+
+        double radians = Math.toRadians(angle);
+        final float x2 = x + (float) (Math.cos(radians) * length);
+        final float y2 = y + (float) (Math.sin(radians) * length);
+
+        EntryTest test = new EntryTest() {
+            public boolean accepts(Entry entry)
+            {
+                return segmentIntersects(x, y, x2, y2, entry);
+            }
+        };
+
+        // Shapes are filed by their centers, so a shape whose bounds touch
+        // the segment can be filed up to its radius away from it.
+        float margin = maxRadius;
+        float minX = Math.min(x, x2);
+        float maxX = Math.max(x, x2);
+        int firstColumn = cell(minX - margin);
+        int lastColumn = cell(maxX + margin);
+        int firstRow = cell(Math.min(y, y2) - margin);
+        int lastRow = cell(Math.max(y, y2) + margin);
+
+        Set<MyShape> result = new HashSet<MyShape>();
+        int queryStamp = nextStamp();
+
+        if (cellCount(firstColumn, firstRow, lastColumn, lastRow)
+                > buckets.length)
+        {
+            scanAllBuckets(test, result, cls);
+            return result;
+        }
+
+        for (int cx = firstColumn; cx <= lastColumn; cx++)
+        {
+            // Find the part of the segment that lies within this column
+            // (widened by the margin), and visit only the cells it spans.
+            float left = Math.max(cx * cellSize - margin, minX);
+            float right = Math.min((cx + 1) * cellSize + margin, maxX);
+            float ya = yAt(x, y, x2, y2, left);
+            float yb = yAt(x, y, x2, y2, right);
+
+            int top = cell(Math.min(ya, yb) - margin);
+            int bottom = cell(Math.max(ya, yb) + margin);
+
+            for (int cy = top; cy <= bottom; cy++)
+            {
+                scanBucket(bucketFor(cx, cy), queryStamp, test, result, cls);
+            }
+        }
+
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Collects the shapes filed in the cells that overlap a rectangle and
+     * that pass a test.
+     */
+    private <MyShape extends Shape> Set<MyShape> searchArea(
+            float left, float top, float right, float bottom,
+            Class<MyShape> cls, EntryTest test)
+    {
+        flush();
+
+        Set<MyShape> result = new HashSet<MyShape>();
+        int firstColumn = cell(left);
+        int lastColumn = cell(right);
+        int firstRow = cell(top);
+        int lastRow = cell(bottom);
+
+        if (cellCount(firstColumn, firstRow, lastColumn, lastRow)
+                > buckets.length)
+        {
+            // The area covers more cells than there are buckets, so it is
+            // cheaper to look at every bucket once.
+            scanAllBuckets(test, result, cls);
+            return result;
+        }
+
+        int queryStamp = nextStamp();
+
+        for (int cx = firstColumn; cx <= lastColumn; cx++)
+        {
+            for (int cy = firstRow; cy <= lastRow; cy++)
+            {
+                scanBucket(bucketFor(cx, cy), queryStamp, test, result, cls);
+            }
+        }
+
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Collects the shapes in one bucket that pass a test, unless the bucket
+     * has already been scanned by the current query (several cells can hash
+     * to the same bucket).
+     */
+    private <MyShape extends Shape> void scanBucket(int bucket,
+            int queryStamp, EntryTest test, Set<MyShape> result,
+            Class<MyShape> cls)
+    {
+        if (bucketStamps[bucket] == queryStamp)
+        {
+            return;
+        }
+
+        bucketStamps[bucket] = queryStamp;
+        ArrayList<Entry> contents = buckets[bucket];
+
+        for (int i = 0; i < contents.size(); i++)
+        {
+            Entry entry = contents.get(i);
+
+            if (test.accepts(entry))
+            {
+                addIfInstance(result, entry.shape, cls);
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private <MyShape extends Shape> void scanAllBuckets(
+            EntryTest test, Set<MyShape> result, Class<MyShape> cls)
+    {
+        for (ArrayList<Entry> contents : buckets)
+        {
+            for (int i = 0; i < contents.size(); i++)
+            {
+                Entry entry = contents.get(i);
+
+                if (test.accepts(entry))
+                {
+                    addIfInstance(result, entry.shape, cls);
+                }
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Brings the entries of all dirty shapes up to date.
+     */
+    private void flush()
+    {
+        for (int i = 0; i < dirtyEntries.size(); i++)
+        {
+            Entry entry = dirtyEntries.get(i);
+            entry.dirty = false;
+
+            int oldBucket = entry.bucket;
+            entry.refresh();
+            maxRadius = Math.max(maxRadius, entry.radius);
+
+            int newBucket = bucketFor(cell(entry.x), cell(entry.y));
+
+            if (newBucket != oldBucket)
+            {
+                buckets[oldBucket].remove(entry);
+                entry.bucket = newBucket;
+                buckets[newBucket].add(entry);
+            }
+        }
+
+        dirtyEntries.clear();
+    }
+
+
+    // ----------------------------------------------------------
+    private void insert(Entry entry)
+    {
+        maxRadius = Math.max(maxRadius, entry.radius);
+        entry.bucket = bucketFor(cell(entry.x), cell(entry.y));
+        buckets[entry.bucket].add(entry);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Refiles every entry into a new set of buckets, choosing a new cell size
+     * if it is not set explicitly.
+     *
+     * @param bucketCount the number of buckets, which must be a power of 2
+     */
+    private void rebuild(int bucketCount)
+    {
+        maxRadius = 0;
+        double totalRadius = 0;
+
+        for (Entry entry : entries.values())
+        {
+            entry.dirty = false;
+            entry.refresh();
+            totalRadius += entry.radius;
+        }
+
+        dirtyEntries.clear();
+
+        if (explicitCellSize > 0)
+        {
+            cellSize = explicitCellSize;
+        }
+        else if (totalRadius > 0)
+        {
+            // Cells about twice the size of a typical shape keep each shape's
+            // neighbors within a few cells of it.
+            cellSize = (float) (4 * totalRadius / entries.size());
+        }
+        else
+        {
+            cellSize = DEFAULT_CELL_SIZE;
+        }
+
+        allocateBuckets(bucketCount);
+
+        for (Entry entry : entries.values())
+        {
+            insert(entry);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    @SuppressWarnings("unchecked")
+    private void allocateBuckets(int bucketCount)
+    {
+        buckets = new ArrayList[bucketCount];
+
+        for (int i = 0; i < bucketCount; i++)
+        {
+            buckets[i] = new ArrayList<Entry>(2);
+        }
+
+        bucketStamps = new int[bucketCount];
+        stamp = 0;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Starts a new query, returning the stamp that marks the buckets it has
+     * scanned.
+     */
+    private int nextStamp()
+    {
+        stamp++;
+
+        if (stamp == 0)
+        {
+            // The counter wrapped around; start over so that no bucket
+            // appears to have been scanned already.
+            Arrays.fill(bucketStamps, 0);
+            stamp = 1;
+        }
+
+        return stamp;
+    }
+
+
+    // ----------------------------------------------------------
+    private static long cellCount(
+            int firstColumn, int firstRow, int lastColumn, int lastRow)
+    {
+        return ((long) lastColumn - firstColumn + 1)
+                * ((long) lastRow - firstRow + 1);
+    }
+
+
+    // ----------------------------------------------------------
+    private int cell(float coordinate)
+    {
+        // Clamp, so that loops over cell ranges can never overflow.
+        double index = Math.floor(coordinate / cellSize);
+        return (int) Math.max(MIN_CELL, Math.min(MAX_CELL, index));
+    }
+
+
+    // ----------------------------------------------------------
+    private int bucketFor(int cx, int cy)
+    {
+        int hash = cx * 73856093 ^ cy * 19349663;
+        return hash & (buckets.length - 1);
+    }
+
+
+    // ----------------------------------------------------------
+    @SuppressWarnings("unchecked")
+    private static <MyShape extends Shape> void addIfInstance(
+            Set<MyShape> result, Shape shape, Class<MyShape> cls)
+    {
+        if (cls == null || cls.isInstance(shape))
+        {
+            result.add((MyShape) shape);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private static float yAt(float x1, float y1, float x2, float y2, float x)
+    {
+        if (x2 == x1)
+        {
+            // A vertical segment spans its full height in its column.
+            return (x <= x1) ? Math.min(y1, y2) : Math.max(y1, y2);
+        }
+
+        float t = (x - x1) / (x2 - x1);
+        t = Math.max(0, Math.min(1, t));
+        return y1 + t * (y2 - y1);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Tests whether a line segment intersects an entry's bounds, using the
+     * Liang-Barsky clipping algorithm.
+     */
+    private static boolean segmentIntersects(
+            float x1, float y1, float x2, float y2, Entry entry)
+    {
+        float dx = x2 - x1;
+        float dy = y2 - y1;
+        float[] p = { -dx, dx, -dy, dy };
+        float[] q = {
+            x1 - entry.left, entry.right - x1,
+            y1 - entry.top, entry.bottom - y1
+        };
+
+        float t0 = 0;
+        float t1 = 1;
+
+        for (int i = 0; i < 4; i++)
+        {
+            if (p[i] == 0)
+            {
+                if (q[i] < 0)
+                {
+                    return false;
+                }
+            }
+            else
+            {
+                float t = q[i] / p[i];
+
+                if (p[i] < 0)
+                {
+                    t0 = Math.max(t0, t);
+                }
+                else
+                {
+                    t1 = Math.min(t1, t);
+                }
+
+                if (t0 > t1)
+                {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+
+    // ----------------------------------------------------------
+    private static Vec2 positionOf(Shape shape)
+    {
+        Body body = shape.getB2Body();
+        return (body != null) ? body.getPosition()
+                : shape.getB2BodyDef().position;
+    }
+
+
+    //~ Inner classes .........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * The condition that an entry must meet to be included in the result of
+     * a query.
+     */
+    private interface EntryTest
+    {
+        boolean accepts(Entry entry);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * The grid's record of a shape: where it was, and how large it was, the
+     * last time the entry was refreshed.
+     */
+    private static class Entry
+    {
+        private final Shape shape;
+        private int bucket;
+        private boolean dirty;
+        private float x;
+        private float y;
+        private float left;
+        private float top;
+        private float right;
+        private float bottom;
+        private float radius;
+
+
+        // ----------------------------------------------------------
+        public Entry(Shape shape)
+        {
+            this.shape = shape;
+        }
+
+
+        // ----------------------------------------------------------
+        public void refresh()
+        {
+            Vec2 position = positionOf(shape);
+            x = position.x;
+            y = position.y;
+
+            RectF bounds = shape.getBounds();
+
+            if (bounds != null)
+            {
+                left = Math.min(bounds.left, bounds.right);
+                top = Math.min(bounds.top, bounds.bottom);
+                right = Math.max(bounds.left, bounds.right);
+                bottom = Math.max(bounds.top, bounds.bottom);
+            }
+            else
+            {
+                left = right = x;
+                top = bottom = y;
+            }
+
+            float dx = Math.max(Math.abs(left - x), Math.abs(right - x));
+            float dy = Math.max(Math.abs(top - y), Math.abs(bottom - y));
+            radius = (float) Math.sqrt(dx * dx + dy * dy);
+        }
+    }
+}
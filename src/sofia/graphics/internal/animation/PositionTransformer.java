@@ -47,8 +47,8 @@ public class PositionTransformer implements PropertyTransformer
     // ----------------------------------------------------------
     public void transform(float t)
     {
-        shape.setPosition(new PointF(
+        shape.setPosition(
             start.x + (end.x - start.x) * t,
-            start.y + (end.y - start.y) * t));
+            start.y + (end.y - start.y) * t);
     }
 }
@@ -47,7 +47,6 @@ public class XTransformer implements PropertyTransformer
     // ----------------------------------------------------------
     public void transform(float t)
     {
-        shape.setPosition(new PointF(
-            start.x + (end - start.x) * t, start.y));
+        shape.setPosition(start.x + (end - start.x) * t, start.y);
     }
 }
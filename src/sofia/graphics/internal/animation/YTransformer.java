@@ -47,7 +47,6 @@ public class YTransformer implements PropertyTransformer
     // ----------------------------------------------------------
     public void transform(float t)
     {
-        shape.setPosition(new PointF(
-            start.x, start.y + (end - start.y) * t));
+        shape.setPosition(start.x, start.y + (end - start.y) * t);
     }
 }